@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.apache.karaf.features.FeaturesService;
+
+/**
+ * Shared benchmark fixtures: descriptors, listener wiring.
+ */
+public final class BenchmarkSupport {
+
+	/**
+	 * Write repository descriptor with given number of auto features, one
+	 * bundle each.
+	 */
+	static File descriptor(final File folder, final String repoId,
+			final int count) throws IOException {
+		final File file = new File(folder, repoId + "."
+				+ FeatureDeploymentListener.EXTENSION);
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(
+				file), PropBean.UTF_8);
+		try {
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<features name=\"" + repoId
+					+ "\" xmlns=\"http://karaf.apache.org/xmlns/features/v1.2.0\">\n");
+			for (int index = 0; index < count; index++) {
+				writer.write("  <feature name=\"" + repoId + "-feature-"
+						+ index + "\" version=\"1.0.0\" install=\"auto\">\n");
+				writer.write("    <bundle>mvn:org.example/" + repoId
+						+ "-bundle-" + index + "/1.0.0</bundle>\n");
+				writer.write("  </feature>\n");
+			}
+			writer.write("</features>\n");
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Listener wired to features service, with state in given folder.
+	 */
+	static FeatureDeploymentListener listener(final File folder,
+			final FeaturesService service) {
+		final FeatureDeploymentListener listener = new FeatureDeploymentListener();
+		listener.setBundleContext(StubBundleContext.context(folder));
+		listener.setFeaturesService(service);
+		return listener;
+	}
+
+	private BenchmarkSupport() {
+	}
+
+}
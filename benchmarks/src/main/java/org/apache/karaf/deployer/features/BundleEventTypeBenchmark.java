@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleEvent;
+
+/**
+ * Bundle event code lookup: bit position table vs legacy linear scan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class BundleEventTypeBenchmark {
+
+	/**
+	 * Previous implementation: values() clone and linear scan.
+	 */
+	static BundleEventType legacy(final int code) {
+		for (final BundleEventType known : BundleEventType.values()) {
+			if (known.code == code) {
+				return known;
+			}
+		}
+		return BundleEventType.UNKNOWN;
+	}
+
+	/** First, last and missing entry of the legacy scan. */
+	@Param({ "" + BundleEvent.INSTALLED, "" + BundleEvent.UNINSTALLED, "0" })
+	public int code;
+
+	@Benchmark
+	public BundleEventType legacy() {
+		return legacy(code);
+	}
+
+	@Benchmark
+	public BundleEventType table() {
+		return BundleEventType.from(code);
+	}
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Deployed file check: cached verdict vs descriptor root parse, for
+ * descriptors of different sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+public class CanHandleBenchmark {
+
+	/** Features in descriptor. */
+	@Param({ "10", "1000", "10000" })
+	public int count;
+
+	private File file;
+
+	private File folder;
+
+	private FeatureDeploymentListener listener;
+
+	@Benchmark
+	public boolean cached() {
+		return listener.canHandle(file);
+	}
+
+	@Benchmark
+	public boolean parsed() {
+		return listener.hasKnownRoot(file);
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		folder = StubBundleContext.folder();
+		file = BenchmarkSupport.descriptor(folder, "handle", count);
+		listener = BenchmarkSupport.listener(folder,
+				new StubFeaturesService().service());
+	}
+
+	@TearDown
+	public void teardown() {
+		StubBundleContext.delete(folder);
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full repository deploy/undeploy cycle against stub feature service,
+ * including state flush, as done per bundle event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+public class RepoCycleBenchmark {
+
+	/** Auto features in repository. */
+	@Param({ "10", "100" })
+	public int count;
+
+	private File folder;
+
+	private FeatureDeploymentListener listener;
+
+	private String repoId;
+
+	private URL repoUrl;
+
+	@Benchmark
+	public void cycle() throws Exception {
+		listener.repoCreate(repoId, repoUrl);
+		listener.propFlush();
+		listener.repoDelete(repoId, repoUrl);
+		listener.propFlush();
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		folder = StubBundleContext.folder();
+		repoId = "cycle";
+		repoUrl = BenchmarkSupport.descriptor(folder, repoId, count).toURI()
+				.toURL();
+		listener = BenchmarkSupport.listener(folder,
+				new StubFeaturesService().service());
+	}
+
+	@TearDown
+	public void teardown() {
+		StubBundleContext.delete(folder);
+	}
+
+}
@@ -16,6 +16,8 @@
  */
 package org.apache.karaf.deployer.features;
 
+import java.util.Arrays;
+
 import org.osgi.framework.BundleEvent;
 
 /**
@@ -38,6 +40,23 @@ public enum BundleEventType {
 
 	;
 
+	/** Known types indexed by event code bit position. */
+	private static final BundleEventType[] TABLE = table();
+
+	/**
+	 * Build lookup table, event codes are single bit flags.
+	 */
+	private static BundleEventType[] table() {
+		final BundleEventType[] table = new BundleEventType[Integer.SIZE];
+		Arrays.fill(table, UNKNOWN);
+		for (final BundleEventType known : values()) {
+			if (known.code != 0) {
+				table[Integer.numberOfTrailingZeros(known.code)] = known;
+			}
+		}
+		return table;
+	}
+
 	public final int code;
 
 	BundleEventType(final int code) {
@@ -49,12 +68,10 @@ public enum BundleEventType {
 	}
 
 	public static BundleEventType from(final int code) {
-		for (final BundleEventType known : BundleEventType.values()) {
-			if (known.code == code) {
-				return known;
-			}
+		if (Integer.bitCount(code) != 1) {
+			return UNKNOWN;
 		}
-		return UNKNOWN;
+		return TABLE[Integer.numberOfTrailingZeros(code)];
 	}
 
 }
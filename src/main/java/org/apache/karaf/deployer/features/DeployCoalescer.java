@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Debounce stage for repository bundle events.
+ * <p>
+ * Events of the same repository arriving within the quiet period of each
+ * other form a burst. When the repository stays quiet, the burst is handed
+ * over as a single net operation against the last seen descriptor: the
+ * first event tells if the repository was registered before the burst,
+ * the last one if it should be registered after it.
+ * <p>
+ * The timer thread only hands net operations over, target is expected to
+ * run them elsewhere. Events after shutdown are dropped and logged.
+ */
+public class DeployCoalescer {
+
+	/**
+	 * Events of one repository, not yet handed over.
+	 */
+	static final class Burst {
+
+		Bundle bundle;
+
+		int count;
+
+		final BundleEventType first;
+
+		ScheduledFuture<?> future;
+
+		/** Scheduled hand over this burst is waiting for. */
+		long generation;
+
+		BundleEventType last;
+
+		URL repoUrl;
+
+		final long timeEvent;
+
+		Burst(final BundleEventType first, final long timeEvent) {
+			this.first = first;
+			this.timeEvent = timeEvent;
+		}
+
+	}
+
+	/**
+	 * Receiver of net operations.
+	 */
+	interface Target {
+
+		void deploy(BundleEventType type, Bundle bundle, String repoId,
+				URL repoUrl, long timeEvent);
+
+	}
+
+	/**
+	 * Net operation of a burst, null when it cancels out.
+	 */
+	static BundleEventType net(final BundleEventType first,
+			final BundleEventType last) {
+		final boolean isPresentPast = first != BundleEventType.INSTALLED;
+		final boolean isPresentNext = last != BundleEventType.UNINSTALLED;
+		if (isPresentPast) {
+			return isPresentNext ? BundleEventType.UPDATED
+					: BundleEventType.UNINSTALLED;
+		}
+		return isPresentNext ? BundleEventType.INSTALLED : null;
+	}
+
+	/** Open bursts by repository; guarded by itself. */
+	private final Map<String, Burst> burstMap = new HashMap<String, Burst>();
+
+	/** No more bursts are opened; guarded by burst map. */
+	private boolean isShutdown;
+
+	private final Logger logger = LoggerFactory
+			.getLogger(DeployCoalescer.class);
+
+	/** Quiet period, millis. */
+	private final long period;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final Target target;
+
+	DeployCoalescer(final long period, final Target target) {
+		this.period = period;
+		this.target = target;
+		this.scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable,
+								"feature-coalesce");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Hand over burst of a repository, when still waiting for generation.
+	 */
+	void fire(final String repoId, final long generation) {
+		final Burst burst;
+		synchronized (burstMap) {
+			burst = burstMap.get(repoId);
+			if (burst == null || burst.generation != generation) {
+				/** Extended by a later event, or flushed. */
+				return;
+			}
+			burstMap.remove(repoId);
+		}
+		fire(repoId, burst);
+	}
+
+	/**
+	 * Hand over net operation of a removed burst.
+	 */
+	void fire(final String repoId, final Burst burst) {
+		final BundleEventType type = net(burst.first, burst.last);
+		logger.info("Coalesced: {} {} events {} -> {}", repoId, burst.count,
+				burst.first + ".." + burst.last, type);
+		if (type == null) {
+			return;
+		}
+		try {
+			target.deploy(type, burst.bundle, repoId, burst.repoUrl,
+					burst.timeEvent);
+		} catch (final Throwable e) {
+			logger.error("Coalesced deploy failure: " + repoId, e);
+		}
+	}
+
+	/**
+	 * Hand over all open bursts now, on the calling thread.
+	 */
+	void flush() {
+		final List<Map.Entry<String, Burst>> entryList;
+		synchronized (burstMap) {
+			entryList = new ArrayList<Map.Entry<String, Burst>>(
+					burstMap.entrySet());
+			burstMap.clear();
+		}
+		for (final Map.Entry<String, Burst> entry : entryList) {
+			entry.getValue().future.cancel(false);
+			fire(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Number of events waiting in open bursts.
+	 */
+	int pending() {
+		int count = 0;
+		synchronized (burstMap) {
+			for (final Burst burst : burstMap.values()) {
+				count += burst.count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Flush open bursts, stop scheduler.
+	 */
+	void shutdown() {
+		synchronized (burstMap) {
+			isShutdown = true;
+		}
+		flush();
+		scheduler.shutdownNow();
+	}
+
+	/**
+	 * Add event to the burst of its repository, restart quiet period.
+	 */
+	void submit(final BundleEventType type, final Bundle bundle,
+			final String repoId, final URL repoUrl, final long timeEvent) {
+		synchronized (burstMap) {
+			if (isShutdown) {
+				logger.error("Event dropped after shutdown: {} {}", repoId,
+						type);
+				return;
+			}
+			Burst burst = burstMap.get(repoId);
+			if (burst == null) {
+				burst = new Burst(type, timeEvent);
+				burstMap.put(repoId, burst);
+			} else {
+				burst.future.cancel(false);
+			}
+			burst.count++;
+			burst.last = type;
+			burst.bundle = bundle;
+			burst.repoUrl = repoUrl;
+			final long generation = ++burst.generation;
+			burst.future = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					fire(repoId, generation);
+				}
+			}, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
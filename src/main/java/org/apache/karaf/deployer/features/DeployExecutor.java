@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded deployment executor with ordered per-repository queues.
+ * <p>
+ * Tasks with the same key run one after another in submission order, tasks
+ * with different keys run in parallel. When the pool is saturated the
+ * submitting thread runs the work itself, which throttles event delivery
+ * instead of dropping events. After shutdown tasks are dropped and logged.
+ */
+public class DeployExecutor {
+
+	/**
+	 * Drains single key queue, in order.
+	 */
+	class Drain implements Runnable {
+
+		final String key;
+
+		Drain(final String key) {
+			this.key = key;
+		}
+
+		/**
+		 * Drop queued tasks of a drain which will never run.
+		 */
+		void reject() {
+			final Queue<Runnable> queue;
+			synchronized (queueMap) {
+				queue = queueMap.remove(key);
+			}
+			final int count = queue == null ? 0 : queue.size();
+			pending.addAndGet(-count);
+			logger.error("Deploy tasks dropped after shutdown: {} {}", key,
+					count);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final Runnable task;
+				synchronized (queueMap) {
+					final Queue<Runnable> queue = queueMap.get(key);
+					task = queue.poll();
+					if (task == null) {
+						queueMap.remove(key);
+						return;
+					}
+				}
+				try {
+					task.run();
+				} catch (final Throwable e) {
+					logger.error("Deploy task failure: " + key, e);
+				} finally {
+					pending.decrementAndGet();
+				}
+			}
+		}
+
+	}
+
+	/** Default number of deployer threads. */
+	static final int THREADS = 4;
+
+	/** Default number of waiting repository drains. */
+	static final int BACKLOG = 64;
+
+	private final ThreadPoolExecutor executor;
+
+	private final Logger logger = LoggerFactory.getLogger(DeployExecutor.class);
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private volatile boolean isShutdown;
+
+	/** Key queues with an active drain; guarded by itself. */
+	private final Map<String, Queue<Runnable>> queueMap = new HashMap<String, Queue<Runnable>>();
+
+	DeployExecutor(final int threads, final int backlog) {
+		final ThreadFactory factory = new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "feature-deployer-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		final RejectedExecutionHandler handler = new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(final Runnable runnable,
+					final ThreadPoolExecutor pool) {
+				if (pool.isShutdown()) {
+					((Drain) runnable).reject();
+				} else {
+					/** Saturated, caller runs. */
+					runnable.run();
+				}
+			}
+		};
+		executor = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(backlog),
+				factory, handler);
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Submit task for a key, runs after earlier tasks of the same key.
+	 */
+	void execute(final String key, final Runnable task) {
+		if (isShutdown) {
+			logger.error("Deploy task dropped after shutdown: {}", key);
+			return;
+		}
+		pending.incrementAndGet();
+		synchronized (queueMap) {
+			final Queue<Runnable> queue = queueMap.get(key);
+			if (queue != null) {
+				/** Active drain will pick it up. */
+				queue.add(task);
+				return;
+			}
+			final Queue<Runnable> fresh = new LinkedList<Runnable>();
+			fresh.add(task);
+			queueMap.put(key, fresh);
+		}
+		executor.execute(new Drain(key));
+	}
+
+	/**
+	 * Number of submitted tasks not yet completed.
+	 */
+	int pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stop accepting tasks, wait for queued tasks to finish.
+	 */
+	boolean shutdown(final long timeout, final TimeUnit unit)
+			throws InterruptedException {
+		isShutdown = true;
+		executor.shutdown();
+		return executor.awaitTermination(timeout, unit);
+	}
+
+}
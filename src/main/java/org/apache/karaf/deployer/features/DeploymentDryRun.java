@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deployment dry-run.
+ * <p>
+ * Runs the deployer's own feature add/remove against a private copy of the
+ * reference counts and a view of the feature service which records
+ * installs and uninstalls instead of making them; every count change is a
+ * plan step. Deployer state and feature service are only read.
+ */
+public class DeploymentDryRun implements FeatureDeployment.Target {
+
+	/**
+	 * Copy of deployer counts which records changes, in memory only.
+	 */
+	final class Counts extends PropBean {
+
+		Counts(final Properties counts) {
+			super(counts);
+		}
+
+		@Override
+		synchronized boolean checkDecrement(final String repoId,
+				final String featureId) throws Exception {
+			final int countPast = countValue(null, featureId);
+			final boolean isDecrement = super.checkDecrement(repoId,
+					featureId);
+			if (isDecrement) {
+				stepList.add(new DeploymentPlan.Step(DeploymentPlan.RELEASE,
+						featureId, countPast, countPast - 1, 0));
+			}
+			return isDecrement;
+		}
+
+		@Override
+		synchronized boolean checkIncrement(final String repoId,
+				final String featureId) throws Exception {
+			final int countPast = countValue(null, featureId);
+			final boolean isIncrement = super.checkIncrement(repoId,
+					featureId);
+			if (isIncrement) {
+				stepList.add(new DeploymentPlan.Step(
+						DeploymentPlan.REFERENCE, featureId, countPast,
+						countPast + 1, 0));
+			}
+			return isIncrement;
+		}
+
+	}
+
+	private final Counts counts;
+
+	private final FeatureDeployment deployment;
+
+	/** Features of the planned descriptor, null when there is none. */
+	private final List<Feature> descriptorList;
+
+	/** Recorded installs, by feature id. */
+	private final Map<String, Feature> installMap = new LinkedHashMap<String, Feature>();
+
+	private final Logger logger = LoggerFactory
+			.getLogger(DeploymentDryRun.class);
+
+	/** Registered features as seen by the dry-run, built once. */
+	private Map<String, Feature> registeredMap;
+
+	private final String repoId;
+
+	private final FeaturesService service;
+
+	/** Count changes, in execution order. */
+	private final List<DeploymentPlan.Step> stepList = new ArrayList<DeploymentPlan.Step>();
+
+	/** Recorded uninstalls, by feature id. */
+	private final Map<String, Feature> uninstallMap = new LinkedHashMap<String, Feature>();
+
+	DeploymentDryRun(final FeatureDeploymentListener listener,
+			final String repoId, final List<Feature> descriptorList)
+			throws Exception {
+		this.counts = new Counts(listener.propBean().counts());
+		this.descriptorList = descriptorList;
+		this.repoId = repoId;
+		this.service = listener.getFeaturesService();
+		/** Own tracer and locks, nothing shared with the deployer. */
+		this.deployment = new FeatureDeployment(this, new DeploymentTracer(),
+				logger);
+	}
+
+	@Override
+	public PropBean counts() {
+		return counts;
+	}
+
+	/**
+	 * Plan repository create, same as
+	 * {@link FeatureDeploymentListener#repoCreate(String, java.net.URL)}.
+	 */
+	DeploymentPlan create(final List<Feature> featureList) throws Exception {
+		deployment.featureAdd(repoId, featureList);
+		return plan("create");
+	}
+
+	/**
+	 * Plan repository delete, same as
+	 * {@link FeatureDeploymentListener#repoDelete(String, java.net.URL)}.
+	 */
+	DeploymentPlan delete(final List<Feature> featureList) throws Exception {
+		deployment.featureRemove(repoId, featureList);
+		return plan("delete");
+	}
+
+	@Override
+	public synchronized void install(final Set<Feature> featureSet) {
+		for (final Feature feature : featureSet) {
+			uninstallMap.remove(feature.getId());
+			installMap.put(feature.getId(), feature);
+		}
+	}
+
+	/**
+	 * Installed features as seen after recorded changes.
+	 */
+	@Override
+	public synchronized Feature[] installed() {
+		final Map<String, Feature> featureMap = new LinkedHashMap<String, Feature>();
+		for (final Feature feature : service.listInstalledFeatures()) {
+			featureMap.put(feature.getId(), feature);
+		}
+		featureMap.keySet().removeAll(uninstallMap.keySet());
+		featureMap.putAll(installMap);
+		return featureMap.values().toArray(new Feature[featureMap.size()]);
+	}
+
+	@Override
+	public synchronized boolean isInstalled(final Feature feature) {
+		final String featureId = feature.getId();
+		if (installMap.containsKey(featureId)) {
+			return true;
+		}
+		if (uninstallMap.containsKey(featureId)) {
+			return false;
+		}
+		return service.isInstalled(feature);
+	}
+
+	/**
+	 * Steps with install and uninstall resolved.
+	 */
+	synchronized DeploymentPlan plan(final String operation) {
+		final DeploymentPlan plan = new DeploymentPlan(operation, repoId);
+		for (final DeploymentPlan.Step step : stepList) {
+			final String featureId = step.getFeatureId();
+			final Feature installed = installMap.get(featureId);
+			final Feature uninstalled = uninstallMap.get(featureId);
+			if (step.getCountPast() == 0 && installed != null) {
+				plan.add(new DeploymentPlan.Step(DeploymentPlan.INSTALL,
+						featureId, 0, step.getCountNext(), installed
+								.getBundles().size()));
+			} else if (step.getCountNext() == 0 && uninstalled != null) {
+				plan.add(new DeploymentPlan.Step(DeploymentPlan.UNINSTALL,
+						featureId, step.getCountPast(), 0, uninstalled
+								.getBundles().size()));
+			} else {
+				plan.add(step);
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Registered features, the descriptor in place of its repository; first
+	 * match by name and version wins, same as {@link FeatureIndex}.
+	 */
+	@Override
+	public synchronized Map<String, Feature> registered() throws Exception {
+		if (registeredMap != null) {
+			return registeredMap;
+		}
+		final List<Feature> featureList = new ArrayList<Feature>();
+		if (descriptorList == null) {
+			for (final Feature feature : service.listFeatures()) {
+				featureList.add(feature);
+			}
+		} else {
+			featureList.addAll(descriptorList);
+			for (final Repository repo : service.listRepositories()) {
+				if (!repoId.equals(repo.getName())) {
+					for (final Feature feature : repo.getFeatures()) {
+						featureList.add(feature);
+					}
+				}
+			}
+		}
+		final Map<String, Feature> featureMap = new HashMap<String, Feature>();
+		for (final Feature feature : featureList) {
+			final String key = FeatureIndex.key(feature.getName(),
+					feature.getVersion());
+			if (!featureMap.containsKey(key)) {
+				featureMap.put(key, feature);
+			}
+		}
+		registeredMap = featureMap;
+		return registeredMap;
+	}
+
+	@Override
+	public synchronized void uninstall(final Feature feature) {
+		final String featureId = feature.getId();
+		installMap.remove(featureId);
+		uninstallMap.put(featureId, feature);
+	}
+
+	/**
+	 * Plan repository update, same as
+	 * {@link FeatureDeploymentListener#repoUpdate(String, java.net.URL)}.
+	 */
+	DeploymentPlan update(final List<Feature> featureList) throws Exception {
+		deployment.repoUpdateApply(repoId, featureList);
+		return plan("update");
+	}
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.List;
+
+/**
+ * Feature deployer timers and gauges, exposed over JMX.
+ */
+public class DeploymentMetrics implements DeploymentMetricsMXBean {
+
+	/** Platform MBean server registration name. */
+	static final String OBJECT_NAME = "org.apache.karaf:type=deployer,name=features";
+
+	final DeploymentTimer canHandle = new DeploymentTimer();
+
+	final DeploymentTimer featureInstall = new DeploymentTimer();
+
+	final DeploymentTimer featureUninstall = new DeploymentTimer();
+
+	private final FeatureDeploymentListener listener;
+
+	private final OwnedMBean<DeploymentMetricsMXBean> mbean = new OwnedMBean<DeploymentMetricsMXBean>(
+			this, DeploymentMetricsMXBean.class, OBJECT_NAME);
+
+	final DeploymentTimer repoCreate = new DeploymentTimer();
+
+	final DeploymentTimer repoDelete = new DeploymentTimer();
+
+	final DeploymentTimer stateFlush = new DeploymentTimer();
+
+	final DeploymentTimer stateLoad = new DeploymentTimer();
+
+	DeploymentMetrics(final FeatureDeploymentListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public DeploymentTimer.Snapshot getCanHandle() {
+		return canHandle.snapshot();
+	}
+
+	@Override
+	public DeploymentTimer.Snapshot getFeatureInstall() {
+		return featureInstall.snapshot();
+	}
+
+	@Override
+	public DeploymentTimer.Snapshot getFeatureUninstall() {
+		return featureUninstall.snapshot();
+	}
+
+	@Override
+	public int getPendingEvents() {
+		return listener.pendingEvents();
+	}
+
+	@Override
+	public int getReferenceCounts() {
+		return listener.propBean().size();
+	}
+
+	@Override
+	public int getRegisteredRepositories() {
+		return listener.getFeaturesService().listRepositories().length;
+	}
+
+	@Override
+	public DeploymentTimer.Snapshot getRepoCreate() {
+		return repoCreate.snapshot();
+	}
+
+	@Override
+	public DeploymentTimer.Snapshot getRepoDelete() {
+		return repoDelete.snapshot();
+	}
+
+	@Override
+	public DeploymentTimer.Snapshot getStateFlush() {
+		return stateFlush.snapshot();
+	}
+
+	@Override
+	public DeploymentTimer.Snapshot getStateLoad() {
+		return stateLoad.snapshot();
+	}
+
+	/**
+	 * Register with platform MBean server, fail when the name is taken.
+	 */
+	void register() throws Exception {
+		mbean.register();
+	}
+
+	@Override
+	public void reset() {
+		canHandle.reset();
+		featureInstall.reset();
+		featureUninstall.reset();
+		repoCreate.reset();
+		repoDelete.reset();
+		stateFlush.reset();
+		stateLoad.reset();
+	}
+
+	@Override
+	public String[] traces() {
+		final List<String> lineList = listener.traceLines();
+		return lineList.toArray(new String[lineList.size()]);
+	}
+
+	/**
+	 * Remove from platform MBean server, only when still registered by
+	 * this instance.
+	 */
+	void unregister() throws Exception {
+		mbean.unregister();
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+/**
+ * Feature deployer metrics, registered as
+ * {@value DeploymentMetrics#OBJECT_NAME}.
+ */
+public interface DeploymentMetricsMXBean {
+
+	/** Deployed file checks. */
+	DeploymentTimer.Snapshot getCanHandle();
+
+	/** Feature install batches. */
+	DeploymentTimer.Snapshot getFeatureInstall();
+
+	/** Single feature uninstalls. */
+	DeploymentTimer.Snapshot getFeatureUninstall();
+
+	/** Bundle events waiting for a deployer thread. */
+	int getPendingEvents();
+
+	/** Repository/feature reference counts in deployer state. */
+	int getReferenceCounts();
+
+	/** Repositories registered with feature service. */
+	int getRegisteredRepositories();
+
+	/** Wrapper bundle deployments. */
+	DeploymentTimer.Snapshot getRepoCreate();
+
+	/** Wrapper bundle undeployments. */
+	DeploymentTimer.Snapshot getRepoDelete();
+
+	/** Deployer state file flushes. */
+	DeploymentTimer.Snapshot getStateFlush();
+
+	/** Deployer state file loads. */
+	DeploymentTimer.Snapshot getStateLoad();
+
+	/** Clear all timers. */
+	void reset();
+
+	/** Recent repository operation traces, one line per span. */
+	String[] traces();
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.beans.ConstructorProperties;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dry-run outcome of a repository operation, exposed over JMX.
+ * <p>
+ * One step per reference count change, in execution order; a step which
+ * takes a feature count from zero installs it, a step which takes it to
+ * zero uninstalls it. Nothing is changed while planning.
+ */
+public class DeploymentPlan {
+
+	/**
+	 * Single feature count change of a plan.
+	 */
+	public static final class Step {
+
+		private final String action;
+		private final int bundles;
+		private final int countNext;
+		private final int countPast;
+		private final String featureId;
+
+		@ConstructorProperties({ "action", "featureId", "countPast",
+				"countNext", "bundles" })
+		public Step(final String action, final String featureId,
+				final int countPast, final int countNext, final int bundles) {
+			this.action = action;
+			this.featureId = featureId;
+			this.countPast = countPast;
+			this.countNext = countNext;
+			this.bundles = bundles;
+		}
+
+		/** One of install, reference, release, uninstall. */
+		public String getAction() {
+			return action;
+		}
+
+		/** Feature bundles provisioned by this step, zero for count only. */
+		public int getBundles() {
+			return bundles;
+		}
+
+		/** Total feature count after this step. */
+		public int getCountNext() {
+			return countNext;
+		}
+
+		/** Total feature count before this step. */
+		public int getCountPast() {
+			return countPast;
+		}
+
+		public String getFeatureId() {
+			return featureId;
+		}
+
+		@Override
+		public String toString() {
+			return action + " " + featureId + " " + countPast + "->"
+					+ countNext + " bundles=" + bundles;
+		}
+
+	}
+
+	/** Count taken from zero, feature installed. */
+	static final String INSTALL = "install";
+
+	/** Count incremented, feature already present. */
+	static final String REFERENCE = "reference";
+
+	/** Count decremented, feature still referenced. */
+	static final String RELEASE = "release";
+
+	/** Count taken to zero, feature uninstalled. */
+	static final String UNINSTALL = "uninstall";
+
+	private final String operation;
+	private final String repoId;
+	private final List<Step> stepList;
+
+	DeploymentPlan(final String operation, final String repoId) {
+		this(operation, repoId, new Step[0]);
+	}
+
+	@ConstructorProperties({ "operation", "repoId", "steps" })
+	public DeploymentPlan(final String operation, final String repoId,
+			final Step[] steps) {
+		this.operation = operation;
+		this.repoId = repoId;
+		this.stepList = new ArrayList<Step>();
+		for (final Step step : steps) {
+			stepList.add(step);
+		}
+	}
+
+	void add(final Step step) {
+		stepList.add(step);
+	}
+
+	/** Bundles provisioned by install and uninstall steps. */
+	public int getBundleCount() {
+		int count = 0;
+		for (final Step step : stepList) {
+			count += step.getBundles();
+		}
+		return count;
+	}
+
+	/** Features which would be installed. */
+	public int getInstallCount() {
+		return count(INSTALL);
+	}
+
+	/** Planned repository operation: create, update or delete. */
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getRepoId() {
+		return repoId;
+	}
+
+	public Step[] getSteps() {
+		return stepList.toArray(new Step[stepList.size()]);
+	}
+
+	/** Features which would be uninstalled. */
+	public int getUninstallCount() {
+		return count(UNINSTALL);
+	}
+
+	int count(final String action) {
+		int count = 0;
+		for (final Step step : stepList) {
+			if (action.equals(step.getAction())) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder text = new StringBuilder();
+		text.append(operation).append(" ").append(repoId)
+				.append(" install=").append(getInstallCount())
+				.append(" uninstall=").append(getUninstallCount())
+				.append(" bundles=").append(getBundleCount());
+		for (final Step step : stepList) {
+			text.append("\n\t").append(step);
+		}
+		return text.toString();
+	}
+
+}
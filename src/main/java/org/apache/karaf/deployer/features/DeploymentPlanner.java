@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.Repository;
+import org.w3c.dom.Document;
+
+/**
+ * Feature deployer dry-runs, exposed over JMX.
+ * <p>
+ * Each plan runs on a fresh {@link DeploymentDryRun}; nothing is changed.
+ */
+public class DeploymentPlanner implements DeploymentPlannerMXBean {
+
+	/** Platform MBean server registration name. */
+	static final String OBJECT_NAME = "org.apache.karaf:type=deployer,name=planner";
+
+	private final FeatureDeploymentListener listener;
+
+	private final OwnedMBean<DeploymentPlannerMXBean> mbean = new OwnedMBean<DeploymentPlannerMXBean>(
+			this, DeploymentPlannerMXBean.class, OBJECT_NAME);
+
+	DeploymentPlanner(final FeatureDeploymentListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public DeploymentPlan planCreate(final String location) throws Exception {
+		final File file = new File(location);
+		if (file.isFile()) {
+			return planCreate(file.toURI().toURL());
+		}
+		return planCreate(new URL(location));
+	}
+
+	/**
+	 * Dry-run repository create from descriptor, or update when the
+	 * repository it declares is already registered.
+	 */
+	DeploymentPlan planCreate(final URL repoUrl) throws Exception {
+
+		final Document document = listener.parse(repoUrl);
+		final String repoId = DescriptorFeature.repoName(document);
+		if (repoId == null) {
+			throw new IllegalStateException("Descriptor has no repo name: "
+					+ repoUrl);
+		}
+
+		final List<Feature> descriptorList = DescriptorFeature
+				.features(document);
+		final List<Feature> autoList = new ArrayList<Feature>();
+		for (final Feature feature : descriptorList) {
+			if (listener.isAutoInstall(feature)) {
+				autoList.add(feature);
+			}
+		}
+
+		final DeploymentDryRun dryRun = new DeploymentDryRun(listener,
+				repoId, descriptorList);
+		if (listener.hasRepoRegistered(repoId)) {
+			return dryRun.update(autoList);
+		}
+		return dryRun.create(autoList);
+
+	}
+
+	@Override
+	public DeploymentPlan planDelete(final String repoId) throws Exception {
+
+		if (!listener.hasRepoRegistered(repoId)) {
+			throw new IllegalStateException("Repo is missing: " + repoId);
+		}
+
+		final Repository repo = listener.repo(repoId);
+
+		return new DeploymentDryRun(listener, repoId, null).delete(listener
+				.autoFeatures(repo));
+
+	}
+
+	/**
+	 * Register with platform MBean server, fail when the name is taken.
+	 */
+	void register() throws Exception {
+		mbean.register();
+	}
+
+	/**
+	 * Remove from platform MBean server, only when still registered by
+	 * this instance.
+	 */
+	void unregister() throws Exception {
+		mbean.unregister();
+	}
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Operation counter with latency histogram.
+ * <p>
+ * Histogram bucket N counts operations which took [2^N, 2^(N+1))
+ * microseconds, bucket 0 also counts faster ones. Recording is lock free.
+ */
+public class DeploymentTimer {
+
+	/**
+	 * Point in time timer view, exposed over JMX.
+	 */
+	public static final class Snapshot {
+
+		private final long count;
+		private final long errorCount;
+		private final long[] histogram;
+		private final long maxMicros;
+		private final long totalMicros;
+
+		@ConstructorProperties({ "count", "errorCount", "totalMicros",
+				"maxMicros", "histogram" })
+		public Snapshot(final long count, final long errorCount,
+				final long totalMicros, final long maxMicros,
+				final long[] histogram) {
+			this.count = count;
+			this.errorCount = errorCount;
+			this.totalMicros = totalMicros;
+			this.maxMicros = maxMicros;
+			this.histogram = histogram;
+		}
+
+		/** Finished operations, including failed ones. */
+		public long getCount() {
+			return count;
+		}
+
+		/** Failed operations. */
+		public long getErrorCount() {
+			return errorCount;
+		}
+
+		/** Log2 microsecond buckets, see {@link DeploymentTimer}. */
+		public long[] getHistogram() {
+			return histogram.clone();
+		}
+
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		public long getMeanMicros() {
+			return count == 0 ? 0 : totalMicros / count;
+		}
+
+		public long getTotalMicros() {
+			return totalMicros;
+		}
+
+	}
+
+	/** Histogram bucket count, covers over an hour. */
+	static final int BUCKETS = 32;
+
+	/**
+	 * Histogram bucket of a duration.
+	 */
+	static int bucket(final long micros) {
+		if (micros <= 1) {
+			return 0;
+		}
+		return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+	}
+
+	private final AtomicLongArray bucketArray = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong();
+
+	private final AtomicLong errorCount = new AtomicLong();
+
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	private final AtomicLong totalMicros = new AtomicLong();
+
+	/**
+	 * Record operation started at given {@link System#nanoTime()}.
+	 */
+	void record(final long timeStart, final boolean isError) {
+		final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime()
+				- timeStart);
+		count.incrementAndGet();
+		if (isError) {
+			errorCount.incrementAndGet();
+		}
+		totalMicros.addAndGet(micros);
+		bucketArray.incrementAndGet(bucket(micros));
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+
+	void reset() {
+		count.set(0);
+		errorCount.set(0);
+		totalMicros.set(0);
+		maxMicros.set(0);
+		for (int index = 0; index < BUCKETS; index++) {
+			bucketArray.set(index, 0);
+		}
+	}
+
+	Snapshot snapshot() {
+		final long[] histogram = new long[BUCKETS];
+		for (int index = 0; index < BUCKETS; index++) {
+			histogram[index] = bucketArray.get(index);
+		}
+		return new Snapshot(count.get(), errorCount.get(), totalMicros.get(),
+				maxMicros.get(), histogram);
+	}
+
+}
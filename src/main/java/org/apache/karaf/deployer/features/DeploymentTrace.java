@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timed spans of a single repository operation, under one correlation id.
+ */
+public class DeploymentTrace {
+
+	/**
+	 * Timed step of an operation.
+	 */
+	static final class Span {
+
+		final String detail;
+		final String name;
+		final long timeStart;
+
+		/** Span end, zero while open; guarded by trace. */
+		long timeFinish;
+
+		/** Guarded by trace. */
+		boolean isError;
+
+		Span(final String name, final String detail, final long timeStart) {
+			this.name = name;
+			this.detail = detail;
+			this.timeStart = timeStart;
+		}
+
+	}
+
+	/** Spans kept per trace, later ones are counted only. */
+	static final int SPAN_LIMIT = 1000;
+
+	static long millis(final long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	final long id;
+
+	final String operation;
+
+	final String repoId;
+
+	private final List<Span> spanList = new ArrayList<Span>();
+
+	/** Spans over the limit. */
+	private int spanSkip;
+
+	final String thread;
+
+	/** Trace end, zero while open; guarded by this. */
+	private long timeFinish;
+
+	final long timeStart;
+
+	/** Wall clock start, millis. */
+	final long wallStart;
+
+	/** Guarded by this. */
+	private boolean isError;
+
+	DeploymentTrace(final long id, final String operation,
+			final String repoId, final long timeStart) {
+		this.id = id;
+		this.operation = operation;
+		this.repoId = repoId;
+		this.timeStart = timeStart;
+		this.wallStart = System.currentTimeMillis()
+				- millis(System.nanoTime() - timeStart);
+		this.thread = Thread.currentThread().getName();
+	}
+
+	/**
+	 * Finish operation.
+	 */
+	synchronized void finish(final boolean isError) {
+		this.timeFinish = System.nanoTime();
+		this.isError = isError;
+	}
+
+	/**
+	 * Finish span.
+	 */
+	synchronized void finish(final Span span, final boolean isError) {
+		span.timeFinish = System.nanoTime();
+		span.isError = isError;
+	}
+
+	/**
+	 * Trace as text: summary line, then one line per span with start offset
+	 * and duration, millis.
+	 */
+	synchronized List<String> lines() {
+		final List<String> lineList = new ArrayList<String>(
+				spanList.size() + 2);
+		final long timeEnd = timeFinish == 0 ? System.nanoTime() : timeFinish;
+		lineList.add("trace=" + id + " " + operation + " " + repoId
+				+ " thread=" + thread + " start=" + wallStart + " millis="
+				+ millis(timeEnd - timeStart)
+				+ (timeFinish == 0 ? " OPEN" : isError ? " ERROR" : " OK"));
+		for (final Span span : spanList) {
+			final StringBuilder text = new StringBuilder(96);
+			text.append("trace=").append(id);
+			text.append(" +").append(millis(span.timeStart - timeStart));
+			text.append(" ").append(span.name);
+			if (span.detail != null) {
+				text.append(" ").append(span.detail);
+			}
+			if (span.timeFinish != 0) {
+				text.append(" millis=").append(
+						millis(span.timeFinish - span.timeStart));
+			}
+			if (span.isError) {
+				text.append(" ERROR");
+			}
+			lineList.add(text.toString());
+		}
+		if (spanSkip > 0) {
+			lineList.add("trace=" + id + " skipped=" + spanSkip);
+		}
+		return lineList;
+	}
+
+	/**
+	 * Record point in time event.
+	 */
+	synchronized void mark(final String name, final String detail) {
+		final Span span = span(name, detail);
+		if (span != null) {
+			span.timeFinish = span.timeStart;
+		}
+	}
+
+	/**
+	 * Start span, null over the limit.
+	 */
+	synchronized Span span(final String name, final String detail) {
+		return span(name, detail, System.nanoTime());
+	}
+
+	/**
+	 * Start span at given time, null over the limit.
+	 */
+	synchronized Span span(final String name, final String detail,
+			final long timeStart) {
+		if (spanList.size() >= SPAN_LIMIT) {
+			spanSkip++;
+			return null;
+		}
+		final Span span = new Span(name, detail, timeStart);
+		spanList.add(span);
+		return span;
+	}
+
+}
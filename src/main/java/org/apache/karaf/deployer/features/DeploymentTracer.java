@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Correlates spans of a repository operation on the deploying thread.
+ * <p>
+ * The outermost operation on a thread owns the trace; nested operations,
+ * for example create during update, record spans into it. Spans outside of
+ * any operation are ignored.
+ */
+public class DeploymentTracer {
+
+	private final ThreadLocal<DeploymentTrace> current = new ThreadLocal<DeploymentTrace>();
+
+	private final List<TraceExporter> exporterList = new CopyOnWriteArrayList<TraceExporter>();
+
+	private final Logger logger = LoggerFactory
+			.getLogger(DeploymentTracer.class);
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	void addExporter(final TraceExporter exporter) {
+		exporterList.add(exporter);
+	}
+
+	/**
+	 * Continue trace of another thread on this thread; true when attached
+	 * and must be detached.
+	 */
+	boolean attach(final DeploymentTrace trace) {
+		if (trace == null || current.get() != null) {
+			return false;
+		}
+		current.set(trace);
+		return true;
+	}
+
+	/**
+	 * Start operation trace on this thread, null when one is already open.
+	 */
+	DeploymentTrace begin(final String operation, final String repoId,
+			final long timeStart) {
+		if (current.get() != null) {
+			return null;
+		}
+		final DeploymentTrace trace = new DeploymentTrace(
+				sequence.incrementAndGet(), operation, repoId, timeStart);
+		current.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Current operation correlation id, or zero.
+	 */
+	long correlation() {
+		final DeploymentTrace trace = current.get();
+		return trace == null ? 0 : trace.id;
+	}
+
+	/**
+	 * Current operation trace, or null.
+	 */
+	DeploymentTrace current() {
+		return current.get();
+	}
+
+	/**
+	 * Stop continuing trace attached by {@link #attach}.
+	 */
+	void detach(final boolean isAttached) {
+		if (isAttached) {
+			current.remove();
+		}
+	}
+
+	/**
+	 * Finish operation trace started by {@link #begin}, export it.
+	 */
+	void end(final DeploymentTrace trace, final boolean isError) {
+		if (trace == null) {
+			return;
+		}
+		current.remove();
+		trace.finish(isError);
+		for (final TraceExporter exporter : exporterList) {
+			try {
+				exporter.export(trace);
+			} catch (final Exception e) {
+				logger.error("Trace export failure.", e);
+			}
+		}
+	}
+
+	/**
+	 * Finish span started by {@link #span}.
+	 */
+	void end(final DeploymentTrace.Span span, final boolean isError) {
+		final DeploymentTrace trace = current.get();
+		if (trace == null || span == null) {
+			return;
+		}
+		trace.finish(span, isError);
+	}
+
+	/**
+	 * Record point in time event into current trace.
+	 */
+	void mark(final String name, final String detail) {
+		final DeploymentTrace trace = current.get();
+		if (trace == null) {
+			return;
+		}
+		trace.mark(name, detail);
+	}
+
+	void removeExporter(final TraceExporter exporter) {
+		exporterList.remove(exporter);
+	}
+
+	/**
+	 * Start span in current trace, null when there is none.
+	 */
+	DeploymentTrace.Span span(final String name, final String detail) {
+		final DeploymentTrace trace = current.get();
+		if (trace == null) {
+			return null;
+		}
+		return trace.span(name, detail);
+	}
+
+	/**
+	 * Start span in current trace at given time, null when there is none.
+	 */
+	DeploymentTrace.Span span(final String name, final String detail,
+			final long timeStart) {
+		final DeploymentTrace trace = current.get();
+		if (trace == null) {
+			return null;
+		}
+		return trace.span(name, detail, timeStart);
+	}
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Feature read from a descriptor which is not registered.
+ * <p>
+ * Carries identity, install mode, dependencies and bundle locations, enough
+ * to plan a deployment without the feature service; configurations are not
+ * read and come back empty.
+ */
+public class DescriptorFeature implements Feature {
+
+	/**
+	 * Bundle entry of a descriptor feature.
+	 */
+	static final class Bundle implements BundleInfo {
+
+		private final String location;
+
+		private final int startLevel;
+
+		Bundle(final Element element) {
+			this.location = element.getTextContent().trim();
+			final String level = attribute(element, "start-level");
+			this.startLevel = level == null ? 0 : Integer.parseInt(level);
+		}
+
+		@Override
+		public String getLocation() {
+			return location;
+		}
+
+		@Override
+		public int getStartLevel() {
+			return startLevel;
+		}
+
+		@Override
+		public boolean isDependency() {
+			return false;
+		}
+
+		@Override
+		public boolean isStart() {
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return location;
+		}
+
+	}
+
+	/**
+	 * Feature dependency entry of a descriptor feature.
+	 */
+	static final class Link implements Dependency {
+
+		private final String name;
+
+		private final String version;
+
+		Link(final Element element) {
+			this.name = element.getTextContent().trim();
+			this.version = version(attribute(element, "version"));
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String getVersion() {
+			return version;
+		}
+
+		@Override
+		public String toString() {
+			return name + "/" + version;
+		}
+
+	}
+
+	/** Descriptor default feature/dependency version. */
+	static final String DEFAULT_VERSION = "0.0.0";
+
+	static String attribute(final Element element, final String name) {
+		return element.hasAttribute(name) ? element.getAttribute(name)
+				: null;
+	}
+
+	/**
+	 * Features of a descriptor, in descriptor order.
+	 */
+	static List<Feature> features(final Document document) {
+		final List<Feature> featureList = new ArrayList<Feature>();
+		final Element root = document.getDocumentElement();
+		for (Node node = root.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (isElement(node, "feature")) {
+				featureList.add(new DescriptorFeature((Element) node));
+			}
+		}
+		return featureList;
+	}
+
+	static boolean isElement(final Node node, final String name) {
+		return node.getNodeType() == Node.ELEMENT_NODE
+				&& name.equals(node.getLocalName());
+	}
+
+	/**
+	 * Repository name declared by descriptor.
+	 */
+	static String repoName(final Document document) {
+		return attribute(document.getDocumentElement(), "name");
+	}
+
+	static String version(final String version) {
+		return version == null ? DEFAULT_VERSION : version;
+	}
+
+	private final List<BundleInfo> bundleList;
+
+	private final List<Dependency> dependencyList;
+
+	private final String description;
+
+	private final String details;
+
+	private final boolean hasVersion;
+
+	private final String install;
+
+	private final String name;
+
+	private final String resolver;
+
+	private final int startLevel;
+
+	private final String version;
+
+	DescriptorFeature(final Element element) {
+		final List<Dependency> dependencyList = new ArrayList<Dependency>();
+		final List<BundleInfo> bundleList = new ArrayList<BundleInfo>();
+		String details = null;
+		for (Node node = element.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (isElement(node, "feature")) {
+				dependencyList.add(new Link((Element) node));
+			}
+			if (isElement(node, "bundle")) {
+				bundleList.add(new Bundle((Element) node));
+			}
+			if (isElement(node, "details")) {
+				details = node.getTextContent().trim();
+			}
+		}
+		final String level = attribute(element, "start-level");
+		this.bundleList = Collections.unmodifiableList(bundleList);
+		this.dependencyList = Collections.unmodifiableList(dependencyList);
+		this.description = attribute(element, "description");
+		this.details = details;
+		this.hasVersion = element.hasAttribute("version");
+		this.install = attribute(element, "install");
+		this.name = element.getAttribute("name");
+		this.resolver = attribute(element, "resolver");
+		this.startLevel = level == null ? 0 : Integer.parseInt(level);
+		this.version = version(attribute(element, "version"));
+	}
+
+	@Override
+	public List<BundleInfo> getBundles() {
+		return bundleList;
+	}
+
+	/** Conditional bundles are not read. */
+	@SuppressWarnings("rawtypes")
+	public List getConditional() {
+		return Collections.EMPTY_LIST;
+	}
+
+	/** Configuration files are not read. */
+	@SuppressWarnings("rawtypes")
+	public List getConfigurationFiles() {
+		return Collections.EMPTY_LIST;
+	}
+
+	/** Configurations are not read. */
+	public Map<String, Map<String, String>> getConfigurations() {
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public List<Dependency> getDependencies() {
+		return dependencyList;
+	}
+
+	@Override
+	public String getDescription() {
+		return description;
+	}
+
+	@Override
+	public String getDetails() {
+		return details;
+	}
+
+	@Override
+	public String getId() {
+		return name + "/" + version;
+	}
+
+	@Override
+	public String getInstall() {
+		return install;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/** Default region. */
+	public String getRegion() {
+		return null;
+	}
+
+	@Override
+	public String getResolver() {
+		return resolver;
+	}
+
+	@Override
+	public int getStartLevel() {
+		return startLevel;
+	}
+
+	@Override
+	public String getVersion() {
+		return version;
+	}
+
+	@Override
+	public boolean hasVersion() {
+		return hasVersion;
+	}
+
+	@Override
+	public String toString() {
+		return getId();
+	}
+
+}
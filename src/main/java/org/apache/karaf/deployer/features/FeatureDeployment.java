@@ -0,0 +1,660 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+import org.slf4j.Logger;
+
+/**
+ * Feature reference counting of repositories, with feature install and
+ * uninstall.
+ * <p>
+ * A repository references the dependency closure of its auto features; a
+ * feature is installed with its first reference and uninstalled with its
+ * last. Counts, feature queries and changes go through a {@link Target}:
+ * the deployer's own state and feature service, or a dry-run copy which
+ * only records.
+ */
+public class FeatureDeployment {
+
+	/**
+	 * Counts and feature service view the deployment works on.
+	 */
+	interface Target {
+
+		/** Repository/feature reference counts. */
+		PropBean counts();
+
+		/** Installed features. */
+		Feature[] installed() throws Exception;
+
+		/** Install features as a single batch. */
+		void install(Set<Feature> featureSet) throws Exception;
+
+		/** Feature is installed. */
+		boolean isInstalled(Feature feature);
+
+		/** Registered features, by feature id. */
+		Map<String, Feature> registered() throws Exception;
+
+		/** Uninstall feature. */
+		void uninstall(Feature feature) throws Exception;
+
+	}
+
+	private final ConcurrentMap<String, Lock> featureLockMap = new ConcurrentHashMap<String, Lock>();
+
+	/**
+	 * Features collected by batches which are not yet installed, with
+	 * latch released when the claiming batch is done, installed or not.
+	 */
+	private final ConcurrentMap<String, CountDownLatch> installingMap = new ConcurrentHashMap<String, CountDownLatch>();
+
+	private final Logger logger;
+
+	private final Target target;
+
+	private final DeploymentTracer tracer;
+
+	/** Parallel uninstall executor, null for uninstall on the caller. */
+	private volatile Executor uninstallExecutor;
+
+	FeatureDeployment(final Target target, final DeploymentTracer tracer,
+			final Logger logger) {
+		this.target = target;
+		this.tracer = tracer;
+		this.logger = logger;
+	}
+
+	/**
+	 * Ensure all feature dependencies are installed, or are about to be
+	 * installed by this or a concurrent batch.
+	 */
+	void assertDependencyInstalled(final Feature feature,
+			final Map<String, Feature> batch) throws Exception {
+		final List<Dependency> depencencyList = feature.getDependencies();
+		for (final Dependency depencency : depencencyList) {
+			if (isInstalled(depencency)) {
+				continue;
+			}
+			final Feature pending = featureRegistered(depencency);
+			if (pending != null
+					&& (batch.containsKey(pending.getId()) || isInstalling(pending))) {
+				continue;
+			}
+			logger.error(
+					"Expected feature dependency must be already installed: {} -> {}",
+					feature, depencency);
+			throw new IllegalStateException("Missing feature dependency.");
+		}
+	}
+
+	/**
+	 * Release all dependencies of a released feature.
+	 */
+	void dependencyRemove(final String repoId, final Feature feature,
+			final UninstallPlan plan, final Set<String> visitSet)
+			throws Exception {
+
+		final List<Dependency> depencencyList = feature.getDependencies();
+		for (final Dependency depencency : depencencyList) {
+			Feature dependency = featureInstalled(depencency);
+			if (dependency == null) {
+				dependency = featureRegistered(depencency);
+			}
+			if (dependency == null) {
+				logger.warn("Feature dependency is gone, count kept: {} -> {}",
+						feature, depencency);
+				continue;
+			}
+			featureRemove(repoId, dependency, plan, visitSet, true);
+			plan.link(feature, dependency);
+		}
+
+	}
+
+	/**
+	 * Identity of feature/dependency based on name and version.
+	 */
+	boolean equals(final Feature feature, final Dependency depencency) {
+		final boolean sameName = feature.getName().equals(depencency.getName());
+		final boolean sameVersion = feature.getVersion().equals(
+				depencency.getVersion());
+		return sameName && sameVersion;
+	}
+
+	/**
+	 * Activate given auto-install features of a repository, as one batch;
+	 * then make sure features claimed by concurrent batches got installed.
+	 */
+	void featureAdd(final String repoId, final List<Feature> featureList)
+			throws Exception {
+		final Map<String, Feature> batch = new LinkedHashMap<String, Feature>();
+		final Map<String, Feature> claimMap = new LinkedHashMap<String, Feature>();
+		try {
+			final DeploymentTrace.Span span = tracer.span("resolve", repoId);
+			boolean isError = true;
+			try {
+				featureAdd(repoId, featureList, batch, claimMap);
+				isError = false;
+			} finally {
+				tracer.end(span, isError);
+			}
+			featureInstall(batch);
+		} finally {
+			featureClaimRelease(batch);
+		}
+		featureAwait(claimMap);
+	}
+
+	/**
+	 * Resolve dependency closure once, count the whole closure for the
+	 * repository, collect missing features into batch dependencies first,
+	 * and missing features claimed by concurrent batches into claim map.
+	 * <p>
+	 * Repository references every feature its auto features depend on, so
+	 * a shared dependency stays installed while any repository needs it.
+	 */
+	void featureAdd(final String repoId, final List<Feature> featureList,
+			final Map<String, Feature> batch,
+			final Map<String, Feature> claimMap) throws Exception {
+
+		final List<Feature> orderList = featureResolver().resolve(featureList);
+
+		for (final Feature feature : orderList) {
+			if (featureAdd(repoId, feature)) {
+				batch.put(feature.getId(), feature);
+			} else if (isInstalling(feature)) {
+				claimMap.put(feature.getId(), feature);
+			}
+		}
+
+	}
+
+	/**
+	 * Increment counts, report if feature must be installed; closure
+	 * members already referenced by the repository are left as they are.
+	 */
+	boolean featureAdd(final String repoId, final Feature feature)
+			throws Exception {
+		final Lock lock = featureLock(feature);
+		lock.lock();
+		try {
+			if (target.counts().countValue(repoId, feature.getId()) > 0) {
+				logger.debug("Feature kept: {} {}", repoId, feature.getId());
+				return false;
+			}
+			return featureAddLocked(repoId, feature);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Increment counts, report if feature must be installed; under feature
+	 * lock.
+	 */
+	boolean featureAddLocked(final String repoId, final Feature feature)
+			throws Exception {
+
+		final PropBean propBean = target.counts();
+		final boolean isMissing = isMissing(feature) && !isInstalling(feature);
+
+		final boolean isIncrement;
+		final int totalCount;
+		synchronized (propBean) {
+			isIncrement = propBean.checkIncrement(repoId, feature.getId());
+			totalCount = propBean.countValue(null, feature);
+		}
+
+		boolean isDue = false;
+		if (isIncrement) {
+			if (isMissing) {
+				if (totalCount > 1) {
+					logger.error(
+							"Feature count error.",
+							new IllegalStateException(
+									"Feature is missing when should be present."));
+				}
+				/** Claim install, concurrent batches will not repeat it. */
+				isDue = featureClaim(feature);
+			}
+			logger.info("Feature added: {} @ {} {} {}", totalCount, repoId,
+					feature.getName(), feature.getVersion());
+		} else {
+			logger.error("Feature count error.", new IllegalStateException(
+					"Trying to install feature already added."));
+		}
+		return isDue;
+	}
+
+	/**
+	 * Wait for batches which claimed features to finish; claim and install
+	 * the ones still missing, their claiming batch failed.
+	 */
+	void featureAwait(final Map<String, Feature> claimMap) throws Exception {
+		Map<String, Feature> waitMap = claimMap;
+		while (!waitMap.isEmpty()) {
+			final Map<String, Feature> batch = new LinkedHashMap<String, Feature>();
+			final Map<String, Feature> nextMap = new LinkedHashMap<String, Feature>();
+			for (final Feature feature : waitMap.values()) {
+				final CountDownLatch latch = installingMap.get(feature.getId());
+				if (latch != null) {
+					latch.await();
+				}
+				final Lock lock = featureLock(feature);
+				lock.lock();
+				try {
+					if (!isMissing(feature)) {
+						continue;
+					}
+					if (featureClaim(feature)) {
+						batch.put(feature.getId(), feature);
+					} else {
+						nextMap.put(feature.getId(), feature);
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+			if (!batch.isEmpty()) {
+				logger.warn("Features claimed by failed batch, installing: {}",
+						batch.keySet());
+			}
+			try {
+				featureInstall(batch);
+			} finally {
+				featureClaimRelease(batch);
+			}
+			waitMap = nextMap;
+		}
+	}
+
+	/**
+	 * Find registered or installed feature by feature id.
+	 */
+	Feature featureById(final String featureId) throws Exception {
+		final Feature feature = target.registered().get(featureId);
+		if (feature != null) {
+			return feature;
+		}
+		for (final Feature installed : target.installed()) {
+			if (featureId.equals(installed.getId())) {
+				return installed;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Claim feature install for this batch, unless claimed by another.
+	 */
+	boolean featureClaim(final Feature feature) {
+		return installingMap.putIfAbsent(feature.getId(), new CountDownLatch(
+				1)) == null;
+	}
+
+	/**
+	 * Drop batch claims, wake batches waiting for the outcome.
+	 */
+	void featureClaimRelease(final Map<String, Feature> batch) {
+		for (final String featureId : batch.keySet()) {
+			final CountDownLatch latch = installingMap.remove(featureId);
+			if (latch != null) {
+				latch.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Install features as a single batch: one resolution, one refresh.
+	 */
+	void featureInstall(final Map<String, Feature> batch) throws Exception {
+
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		for (final Feature feature : batch.values()) {
+			assertDependencyInstalled(feature, batch);
+		}
+
+		target.install(new LinkedHashSet<Feature>(batch.values()));
+
+		logger.info("Features installed: {}", batch.keySet());
+
+	}
+
+	/**
+	 * Find installed feature based on dependency identity.
+	 */
+	Feature featureInstalled(final Dependency depencency) throws Exception {
+		final Feature feature = featureRegistered(depencency);
+		if (feature != null && isPresent(feature)) {
+			return feature;
+		}
+		/** Installed feature from a repository no longer registered. */
+		final Feature[] featureArray = target.installed();
+		for (final Feature installed : featureArray) {
+			if (equals(installed, depencency)) {
+				return installed;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Lock guarding reference counts and install state of a feature.
+	 * <p>
+	 * One lock per feature identity, not striped: a feature lock is held
+	 * while its dependencies are locked, so shared stripes could deadlock.
+	 */
+	Lock featureLock(final Feature feature) {
+		final String key = feature.getId();
+		final Lock lock = featureLockMap.get(key);
+		if (lock != null) {
+			return lock;
+		}
+		final Lock fresh = new ReentrantLock();
+		final Lock prior = featureLockMap.putIfAbsent(key, fresh);
+		return prior == null ? fresh : prior;
+	}
+
+	/**
+	 * Features by identity, in given order.
+	 */
+	static Map<String, Feature> featureMap(final List<Feature> featureList) {
+		final Map<String, Feature> featureMap = new LinkedHashMap<String, Feature>();
+		for (final Feature feature : featureList) {
+			featureMap.put(feature.getId(), feature);
+		}
+		return featureMap;
+	}
+
+	/**
+	 * Find registered feature based on dependency identity.
+	 */
+	Feature featureRegistered(final Dependency depencency) throws Exception {
+		return target.registered().get(
+				FeatureIndex.key(depencency.getName(), depencency.getVersion()));
+	}
+
+	/**
+	 * Release given features of a repository, no dependency expansion;
+	 * uninstall the ones no longer referenced, dependents first.
+	 */
+	void featureRelease(final String repoId, final List<Feature> featureList)
+			throws Exception {
+		final UninstallPlan plan = new UninstallPlan();
+		for (final Feature feature : featureList) {
+			final Lock lock = featureLock(feature);
+			lock.lock();
+			try {
+				featureRemoveLocked(repoId, feature, plan);
+			} finally {
+				lock.unlock();
+			}
+		}
+		final Map<String, Feature> releaseMap = featureMap(featureList);
+		for (final Feature feature : featureList) {
+			for (final Dependency depencency : feature.getDependencies()) {
+				final Feature dependency = releaseMap.get(FeatureIndex.key(
+						depencency.getName(), depencency.getVersion()));
+				if (dependency != null) {
+					plan.link(feature, dependency);
+				}
+			}
+		}
+		featureUninstall(plan);
+	}
+
+	/**
+	 * Deactivate given auto-install features of a repository, by name; also
+	 * for a repository no longer registered.
+	 */
+	void featureRemove(final String repoId, final List<Feature> featureList)
+			throws Exception {
+		final UninstallPlan plan = new UninstallPlan();
+		final Set<String> visitSet = new HashSet<String>();
+		for (final Feature feature : featureList) {
+			featureRemove(repoId, feature, plan, visitSet, false);
+		}
+		featureUninstall(plan);
+	}
+
+	/**
+	 * Decrement counts of feature and its dependency closure, plan
+	 * uninstall of features no longer referenced.
+	 */
+	void featureRemove(final String repoId, final Feature feature,
+			final UninstallPlan plan, final Set<String> visitSet,
+			final boolean isDependency) throws Exception {
+		/** Repository holds a single count per feature. */
+		if (!visitSet.add(feature.getId())) {
+			return;
+		}
+		final boolean isDecrement;
+		final Lock lock = featureLock(feature);
+		lock.lock();
+		try {
+			if (isDependency
+					&& target.counts().countValue(repoId, feature.getId()) == 0) {
+				/** Not referenced, state from before closure counting. */
+				return;
+			}
+			isDecrement = featureRemoveLocked(repoId, feature, plan);
+		} finally {
+			lock.unlock();
+		}
+		if (isDecrement) {
+			dependencyRemove(repoId, feature, plan, visitSet);
+		}
+	}
+
+	/**
+	 * Decrement counts, plan uninstall when due, report if decremented;
+	 * under feature lock.
+	 */
+	boolean featureRemoveLocked(final String repoId, final Feature feature,
+			final UninstallPlan plan) throws Exception {
+
+		final PropBean propBean = target.counts();
+		final boolean isPresent = isPresent(feature);
+
+		final boolean isDecrement;
+		final int totalCount;
+		synchronized (propBean) {
+			isDecrement = propBean.checkDecrement(repoId, feature.getId());
+			totalCount = propBean.countValue(null, feature);
+		}
+
+		if (isDecrement) {
+			if (totalCount == 0) {
+				if (isPresent) {
+					plan.add(feature);
+				} else {
+					logger.error(
+							"Feature count error.",
+							new IllegalStateException(
+									"Feature is missing when should be present."));
+				}
+			}
+			logger.info("Feature removed: {} @ {} {} {}", totalCount,
+					repoId, feature.getName(), feature.getVersion());
+		} else {
+			logger.error("Feature count error.", new IllegalStateException(
+					"Trying to uninstall feature already removed."));
+		}
+		return isDecrement;
+	}
+
+	/**
+	 * Dependency resolver over registered features.
+	 */
+	FeatureResolver featureResolver() {
+		return new FeatureResolver(new FeatureResolver.Catalog() {
+			@Override
+			public Feature find(final Dependency dependency) throws Exception {
+				return featureRegistered(dependency);
+			}
+		});
+	}
+
+	/**
+	 * Uninstall feature.
+	 */
+	void featureUninstall(final Feature feature) throws Exception {
+
+		target.uninstall(feature);
+
+		logger.info("Feature uninstalled: {} {}", feature.getName(),
+				feature.getVersion());
+
+	}
+
+	/**
+	 * Execute uninstall plan, independent features in parallel.
+	 */
+	void featureUninstall(final UninstallPlan plan) throws Exception {
+		if (plan.isEmpty()) {
+			return;
+		}
+		final Executor pool = uninstallExecutor;
+		final Executor executor = pool == null || plan.size() == 1 ? UninstallPlan.INLINE
+				: pool;
+		final DeploymentTrace trace = tracer.current();
+		plan.execute(executor, new UninstallPlan.Action() {
+			@Override
+			public void uninstall(final Feature feature) throws Exception {
+				final boolean isAttached = tracer.attach(trace);
+				try {
+					featureUninstallDue(feature);
+				} finally {
+					tracer.detach(isAttached);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Uninstall planned feature unless it was added again meanwhile.
+	 */
+	void featureUninstallDue(final Feature feature) throws Exception {
+		final Lock lock = featureLock(feature);
+		lock.lock();
+		try {
+			if (target.counts().countValue(null, feature) > 0) {
+				logger.info("Feature uninstall cancelled, added again: {}",
+						feature.getId());
+				return;
+			}
+			if (!isPresent(feature)) {
+				logger.info("Feature uninstall skipped, not installed: {}",
+						feature.getId());
+				return;
+			}
+			featureUninstall(feature);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Verify if feature dependency is currently installed.
+	 */
+	boolean isInstalled(final Dependency depencency) throws Exception {
+		return featureInstalled(depencency) != null;
+	}
+
+	/**
+	 * Feature is being installed by a batch in progress.
+	 */
+	boolean isInstalling(final Feature feature) {
+		return installingMap.containsKey(feature.getId());
+	}
+
+	/**
+	 * Feature not installed.
+	 */
+	boolean isMissing(final Feature feature) {
+		return !isPresent(feature);
+	}
+
+	/**
+	 * Feature is installed.
+	 */
+	boolean isPresent(final Feature feature) {
+		return target.isInstalled(feature);
+	}
+
+	/**
+	 * Apply difference of resolved closures: release members no longer
+	 * needed, add the new auto features.
+	 */
+	void repoUpdateApply(final String repoId, final List<Feature> nextList)
+			throws Exception {
+
+		final Set<String> nextSet = new HashSet<String>();
+		for (final Feature feature : featureResolver().resolve(nextList)) {
+			nextSet.add(feature.getId());
+		}
+
+		final List<Feature> releaseList = new ArrayList<Feature>();
+		final List<String> pastList = target.counts().repoFeatureMap().get(repoId);
+		if (pastList != null) {
+			for (final String featureId : pastList) {
+				if (nextSet.contains(featureId)) {
+					continue;
+				}
+				final Feature feature = featureById(featureId);
+				if (feature == null) {
+					/** Unknown feature, only drop the count. */
+					target.counts().checkDecrement(repoId, featureId);
+					continue;
+				}
+				releaseList.add(feature);
+			}
+		}
+
+		logger.info("Repo update: {} closure={} release={}", repoId,
+				nextSet.size(), releaseList.size());
+
+		featureRelease(repoId, releaseList);
+		featureAdd(repoId, nextList);
+
+	}
+
+	void setUninstallExecutor(final Executor uninstallExecutor) {
+		this.uninstallExecutor = uninstallExecutor;
+	}
+
+}
@@ -17,23 +17,46 @@
 package org.apache.karaf.deployer.features;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Dictionary;
 import java.util.EnumSet;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.felix.fileinstall.ArtifactUrlTransformer;
 import org.apache.karaf.features.Dependency;
 import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.FeatureEvent;
 import org.apache.karaf.features.FeaturesNamespaces;
+import org.apache.karaf.features.FeaturesListener;
 import org.apache.karaf.features.FeaturesService;
 import org.apache.karaf.features.FeaturesService.Option;
 import org.apache.karaf.features.Repository;
+import org.apache.karaf.features.RepositoryEvent;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
@@ -58,7 +81,10 @@ import org.xml.sax.SAXParseException;
  * <li>dependency features must have a version
  */
 public class FeatureDeploymentListener implements ArtifactUrlTransformer,
-		SynchronousBundleListener {
+		FeaturesListener, SynchronousBundleListener {
+
+	/** Wait for queued asynchronous deployments on deactivate, seconds. */
+	static final long DEPLOY_TIMEOUT = 300;
 
 	/** Repository feature.xml file extension managed by this component. */
 	static final String EXTENSION = "repository";
@@ -66,9 +92,31 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	/** Features folder inside the wrapper bundle. */
 	static final String FEATURE_PATH = "org.apache.karaf.shell.features";
 
+	/** Wrapper bundle manifest header: repository descriptor entry path. */
+	static final String HEADER = "Karaf-Feature-Repository";
+
 	/** Features path inside the wrapper bundle jar. */
 	static final String META_PATH = "/META-INF/" + FEATURE_PATH + "/";
 
+	/** Shared parser error handler: ignore recoverable, fail on fatal. */
+	static final ErrorHandler PARSE_HANDLER = new ErrorHandler() {
+		@Override
+		public void error(final SAXParseException exception)
+				throws SAXException {
+		}
+
+		@Override
+		public void fatalError(final SAXParseException exception)
+				throws SAXException {
+			throw exception;
+		}
+
+		@Override
+		public void warning(final SAXParseException exception)
+				throws SAXException {
+		}
+	};
+
 	/** Deployer state properties file name. */
 	static final String PROP_FILE = FeatureDeploymentListener.class.getName()
 			+ "@repository.properties";
@@ -76,139 +124,255 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	/** Feature deployer protocol, used by default feature deployer. */
 	static final String PROTOCOL = "feature";
 
+	/** Deploy executor key of startup reconciliation. */
+	static final String RECONCILE_KEY = "[reconcile]";
+
+	/** Default trace exporters: in-memory ring, queried over JMX. */
+	static final String TRACE_EXPORT = "ring";
+
+	/** Default number of parallel feature uninstalls: sequential. */
+	static final int UNINSTALL_THREADS = 1;
+
 	/** Root node in feature.xml */
 	static final String ROOT_NODE = "features";
 
-	private volatile BundleContext bundleContext;
+	/**
+	 * Deployer counts and feature service, installs traced and measured.
+	 */
+	final class ServiceTarget implements FeatureDeployment.Target {
 
-	private volatile DocumentBuilderFactory dbf;
+		@Override
+		public PropBean counts() {
+			return propBean();
+		}
 
-	private volatile FeaturesService featuresService;
+		@Override
+		public Feature[] installed() throws Exception {
+			return getFeaturesService().listInstalledFeatures();
+		}
 
-	private final Logger logger = LoggerFactory
-			.getLogger(FeatureDeploymentListener.class);
+		@Override
+		public void install(final Set<Feature> featureSet) throws Exception {
+			final DeploymentTrace.Span span = tracer.span("install",
+					featureSet.toString());
+			final long timeStart = System.nanoTime();
+			boolean isError = true;
+			try {
+				getFeaturesService().installFeatures(featureSet, options());
+				isError = false;
+			} finally {
+				metrics.featureInstall.record(timeStart, isError);
+				tracer.end(span, isError);
+			}
+		}
 
-	/**
-	 * Ensure all feature dependencies are installed into feature service.
-	 */
-	void assertDependencyInstalled(final Feature feature) throws Exception {
-		final List<Dependency> depencencyList = feature.getDependencies();
-		for (final Dependency depencency : depencencyList) {
-			if (isInstalled(depencency)) {
-				continue;
-			} else {
-				logger.error(
-						"Expected feature dependency must be already installed: {} -> {}",
-						feature, depencency);
-				throw new IllegalStateException("Missing feature dependency.");
+		@Override
+		public boolean isInstalled(final Feature feature) {
+			return getFeaturesService().isInstalled(feature);
+		}
+
+		@Override
+		public Map<String, Feature> registered() throws Exception {
+			return featureIndex.map(getFeaturesService());
+		}
+
+		@Override
+		public void uninstall(final Feature feature) throws Exception {
+			final DeploymentTrace.Span span = tracer.span("uninstall",
+					feature.getId());
+			final long timeStart = System.nanoTime();
+			boolean isError = true;
+			try {
+				getFeaturesService().uninstallFeature(feature.getName(),
+						feature.getVersion());
+				isError = false;
+			} finally {
+				metrics.featureUninstall.record(timeStart, isError);
+				tracer.end(span, isError);
 			}
 		}
+
+	}
+
+	private volatile boolean asynchronous;
+
+	private volatile BundleContext bundleContext;
+
+	/** Repository event quiet period, millis; 0 disables coalescing. */
+	private volatile long coalescePeriod;
+
+	private volatile DeployCoalescer coalescer;
+
+	private final DocumentBuilderFactory dbf = parseFactory();
+
+	private volatile DeployExecutor deployExecutor;
+
+	private volatile int deployThreads = DeployExecutor.THREADS;
+
+	/** Feature reference counting over deployer state. */
+	private final FeatureDeployment deployment;
+
+	private final FeatureIndex featureIndex = new FeatureIndex();
+
+	private volatile FeaturesService featuresService;
+
+	private final HandleCache handleCache = new HandleCache();
+
+	private final Logger logger = LoggerFactory.getLogger(getClass());
+
+	private final DeploymentMetrics metrics = new DeploymentMetrics(this);
+
+	private final DeploymentPlanner planner = new DeploymentPlanner(this);
+
+	private volatile PropBean propBean;
+
+	private volatile boolean reconcile;
+
+	private final RepositoryIndex repoIndex = new RepositoryIndex();
+
+	private final LockStripes repoLocks = new LockStripes();
+
+	private volatile String traceExport = TRACE_EXPORT;
+
+	private final TraceLogExporter traceLog = new TraceLogExporter();
+
+	private final DeploymentTracer tracer = new DeploymentTracer();
+
+	private final TraceRingExporter traceRing = new TraceRingExporter();
+
+	private volatile ExecutorService uninstallExecutor;
+
+	private volatile int uninstallThreads = UNINSTALL_THREADS;
+
+	private final WrapperCache wrapperCache = new WrapperCache();
+
+	/** Root sniffer factory, configured once; shared by reader creation. */
+	private final XMLInputFactory xif = rootFactory();
+
+	public FeatureDeploymentListener() {
+		deployment = new FeatureDeployment(new ServiceTarget(), tracer, logger);
 	}
 
 	/**
-	 * Ensure all feature dependencies are registered with feature service.
+	 * Auto-install features of a repository.
 	 */
-	void assertDependencyRegistered(final Feature feature) throws Exception {
-		final List<Dependency> depencencyList = feature.getDependencies();
-		for (final Dependency depencency : depencencyList) {
-			if (isRegistered(depencency)) {
-				continue;
-			} else {
-				logger.error(
-						"Expected feature dependency must be already registered: {} -> {}",
-						feature, depencency);
-				throw new IllegalStateException("Missing feature dependency.");
+	List<Feature> autoFeatures(final Repository repo) throws Exception {
+		final List<Feature> featureList = new ArrayList<Feature>();
+		for (final Feature feature : repo.getFeatures()) {
+			if (isAutoInstall(feature)) {
+				featureList.add(feature);
 			}
 		}
+		return featureList;
 	}
 
 	@Override
 	public void bundleChanged(final BundleEvent event) {
 
+		final long timeEvent = System.nanoTime();
+
+		final BundleEventType type = BundleEventType.from(event);
+
+		switch (type) {
+		default:
+			return;
+		case INSTALLED:
+		case UNINSTALLED:
+		case UPDATED:
+			break;
+		}
+
 		final Bundle bundle = event.getBundle();
 
-		if (!hasRepoDescriptor(bundle)) {
+		/** Capture while bundle entries are still readable. */
+		final URL repoUrl = repoUrl(bundle);
+
+		if (repoUrl == null) {
 			return;
 		}
 
-		final BundleEventType type = BundleEventType.from(event);
+		logBundleEvent(event);
 
-		synchronized (Runnable.class) {
-			try {
-				switch (type) {
-				default:
-					return;
-				case INSTALLED:
-					logBundleEvent(event);
-					repoCreate(bundle);
-					break;
-				case UNINSTALLED:
-					logBundleEvent(event);
-					repoDelete(bundle);
-					break;
-				case UPDATED:
-					logBundleEvent(event);
-					repoDelete(bundle);
-					repoCreate(bundle);
-				}
-				logger.info("Success: " + type + " " + bundle);
-			} catch (final Throwable e) {
-				logger.error("Failure: " + type + " " + bundle, e);
-			}
+		final String repoId = repoId(bundle);
+
+		final DeployCoalescer coalescer = this.coalescer;
+
+		if (coalescer == null) {
+			dispatch(type, bundle, repoId, repoUrl, timeEvent);
+		} else {
+			coalescer.submit(type, bundle, repoId, repoUrl, timeEvent);
 		}
 
 	}
 
 	@Override
 	public boolean canHandle(final File file) {
+		handleCache.sweep();
+		if (!file.isFile() || !file.getName().endsWith("." + EXTENSION)) {
+			handleCache.evict(file);
+			return false;
+		}
+		final long timeStart = System.nanoTime();
+		boolean isError = false;
 		try {
-			if (file.isFile() && file.getName().endsWith("." + EXTENSION)) {
-				final Document doc = parse(file);
-				final String name = doc.getDocumentElement().getLocalName();
-				final String uri = doc.getDocumentElement().getNamespaceURI();
-				if (ROOT_NODE.equals(name)) {
-					if (isKnownFeaturesURI(uri)) {
-						return true;
-					} else {
-						logger.error("Unknown features uri", new Exception(""
-								+ uri));
-					}
-				}
+			final HandleCache.Entry state = handleCache.state(file);
+			final Boolean cached = handleCache.verdict(file, state);
+			if (cached != null) {
+				return cached;
 			}
+			final boolean verdict = hasKnownRoot(file);
+			handleCache.verdict(file, state, verdict);
+			return verdict;
 		} catch (final Exception e) {
+			isError = true;
 			logger.error(
 					"Unable to parse deployed file " + file.getAbsolutePath(),
 					e);
+			return false;
+		} finally {
+			metrics.canHandle.record(timeStart, isError);
 		}
-		return false;
 	}
 
 	/**
-	 * Add all dependencies of a feature.
+	 * Process captured repository bundle event.
 	 */
-	void dependencyAdd(final Repository repo, final Feature feature)
-			throws Exception {
-
-		assertDependencyRegistered(feature);
+	void deploy(final BundleEventType type, final Bundle bundle,
+			final String repoId, final URL repoUrl, final long timeEvent) {
 
-		final List<Dependency> depencencyList = feature.getDependencies();
-		for (final Dependency depencency : depencencyList) {
-			featureAdd(repo, featureRegistered(depencency));
-		}
+		final DeploymentTrace trace = tracer.begin(type.name(), repoId,
+				timeEvent);
+		boolean isError = true;
 
-	}
+		/** Independent repositories deploy in parallel. */
+		final Lock lock = repoLocks.lock(repoId);
 
-	/**
-	 * Remove all dependencies of a feature.
-	 */
-	void dependencyRemove(final Repository repo, final Feature feature)
-			throws Exception {
-
-		assertDependencyInstalled(feature);
-
-		final List<Dependency> depencencyList = feature.getDependencies();
-		for (final Dependency depencency : depencencyList) {
-			featureRemove(repo, featureInstalled(depencency));
+		lock.lock();
+		try {
+			/** Time spent in executor queue and on repository lock. */
+			tracer.end(tracer.span("queue", null, timeEvent), false);
+			switch (type) {
+			default:
+				return;
+			case INSTALLED:
+				repoCreate(repoId, repoUrl);
+				break;
+			case UNINSTALLED:
+				repoDelete(repoId, repoUrl);
+				break;
+			case UPDATED:
+				repoUpdate(repoId, repoUrl);
+			}
+			isError = false;
+			logger.info("Success: " + type + " " + bundle + " trace="
+					+ tracer.correlation());
+		} catch (final Throwable e) {
+			logger.error("Failure: " + type + " " + bundle + " trace="
+					+ tracer.correlation(), e);
+		} finally {
+			propFlush();
+			lock.unlock();
+			tracer.end(trace, isError);
 		}
 
 	}
@@ -218,112 +382,111 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	 */
 	public void destroy() throws Exception {
 		bundleContext.removeBundleListener(this);
-		logger.info("Deployer deactivate.");
-	}
-
-	/**
-	 * Identity of feature/dependency based on name and version.
-	 */
-	boolean equals(final Feature feature, final Dependency depencency) {
-		final boolean sameName = feature.getName().equals(depencency.getName());
-		final boolean sameVersion = feature.getVersion().equals(
-				depencency.getVersion());
-		return sameName && sameVersion;
-	}
-
-	/**
-	 * Activate auto-install features in a repository.
-	 */
-	void featureAdd(final Repository repo) throws Exception {
-		final Feature[] featureArray = repo.getFeatures();
-		for (final Feature feature : featureArray) {
-			if (isAutoInstall(feature)) {
-				featureAdd(repo, feature);
+		final DeployCoalescer coalescer = this.coalescer;
+		if (coalescer != null) {
+			this.coalescer = null;
+			/** Hand over open bursts, before deployer threads stop. */
+			coalescer.shutdown();
+		}
+		final DeployExecutor executor = deployExecutor;
+		if (executor != null) {
+			deployExecutor = null;
+			if (!executor.shutdown(DEPLOY_TIMEOUT, TimeUnit.SECONDS)) {
+				logger.error("Deployer tasks still running after {} seconds.",
+						DEPLOY_TIMEOUT);
 			}
 		}
+		final ExecutorService uninstaller = uninstallExecutor;
+		if (uninstaller != null) {
+			uninstallExecutor = null;
+			deployment.setUninstallExecutor(null);
+			uninstaller.shutdown();
+		}
+		handleCache.clear();
+		wrapperCache.clear();
+		featureIndex.reset();
+		repoIndex.reset();
+		propFlush();
+		try {
+			metrics.unregister();
+		} catch (final Exception e) {
+			logger.error("Unable to unregister metrics.", e);
+		}
+		try {
+			planner.unregister();
+		} catch (final Exception e) {
+			logger.error("Unable to unregister planner.", e);
+		}
+		logger.info("Deployer deactivate.");
 	}
 
 	/**
-	 * Increment counts, install feature when due.
+	 * Process repository event on a deployer thread, or on the caller.
 	 */
-	void featureAdd(final Repository repo, final Feature feature)
-			throws Exception {
+	void dispatch(final BundleEventType type, final Bundle bundle,
+			final String repoId, final URL repoUrl, final long timeEvent) {
 
-		final PropBean propBean = propBean();
-		final boolean isMissing = isMissing(feature);
-
-		if (propBean.checkIncrement(repo, feature)) {
-			final int totalCount = propBean.countValue(null, feature);
-			if (isMissing) {
-				if (totalCount > 1) {
-					logger.error(
-							"Feature count error.",
-							new IllegalStateException(
-									"Feature is missing when should be present."));
-				}
-				dependencyAdd(repo, feature);
-				featureInstall(feature);
-			}
-			logger.info("Feature added: {} @ {} {} {}", totalCount,
-					repo.getName(), feature.getName(), feature.getVersion());
+		final DeployExecutor executor = deployExecutor;
+
+		if (executor == null) {
+			deploy(type, bundle, repoId, repoUrl, timeEvent);
 		} else {
-			logger.error("Feature count error.", new IllegalStateException(
-					"Trying to install feature already added."));
+			executor.execute(repoId, new Runnable() {
+				@Override
+				public void run() {
+					deploy(type, bundle, repoId, repoUrl, timeEvent);
+				}
+			});
 		}
+
 	}
 
 	/**
-	 * Install feature.
+	 * Identity of feature/dependency based on name and version.
 	 */
-	void featureInstall(final Feature feature) throws Exception {
-
-		assertDependencyInstalled(feature);
-
-		final String name = feature.getName();
-		final String version = feature.getVersion();
-		getFeaturesService().installFeature(name, version, options());
-
-		logger.info("Feature installed: {} {}", name, version);
-
+	boolean equals(final Feature feature, final Dependency depencency) {
+		return deployment.equals(feature, depencency);
 	}
 
 	/**
-	 * Find installed feature based on dependency identity.
+	 * Activate auto-install features in a repository.
+	 * <p>
+	 * Features due for install, including missing dependencies, are
+	 * collected first and then installed as a single batch.
 	 */
-	Feature featureInstalled(final Dependency depencency) throws Exception {
-		final Feature[] featureArray = getFeaturesService()
-				.listInstalledFeatures();
-		for (final Feature feature : featureArray) {
-			if (equals(feature, depencency)) {
-				return feature;
-			}
+	void featureAdd(final Repository repo) throws Exception {
+		deployment.featureAdd(repo.getName(), autoFeatures(repo));
+	}
+
+	@Override
+	public void featureEvent(final FeatureEvent event) {
+		/** Install state is queried from feature service directly. */
+		if (event.isReplay()) {
+			return;
+		}
+		/** Progress of a batch install, on the installing thread. */
+		switch (event.getType()) {
+		case FeatureInstalled:
+			tracer.mark("installed", event.getFeature().getId());
+			break;
+		case FeatureUninstalled:
+			tracer.mark("uninstalled", event.getFeature().getId());
+			break;
 		}
-		return null;
 	}
 
 	/**
 	 * Find registered feature based on dependency identity.
 	 */
 	Feature featureRegistered(final Dependency depencency) throws Exception {
-		final Feature[] featureArray = getFeaturesService().listFeatures();
-		for (final Feature feature : featureArray) {
-			if (equals(feature, depencency)) {
-				return feature;
-			}
-		}
-		return null;
+		return deployment.featureRegistered(depencency);
 	}
 
 	/**
 	 * Deactivate auto-install features in a repository.
 	 */
 	void featureRemove(final Repository repo) throws Exception {
-		final Feature[] featureArray = repo.getFeatures();
-		for (final Feature feature : featureArray) {
-			if (isAutoInstall(feature)) {
-				featureRemove(repo, feature);
-			}
-		}
+		deployment.featureRemove(repo.getName(), autoFeatures(repo));
 	}
 
 	/**
@@ -331,52 +494,70 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	 */
 	void featureRemove(final Repository repo, final Feature feature)
 			throws Exception {
-
-		final PropBean propBean = propBean();
-		final boolean isPresent = isPresent(feature);
-
-		if (propBean.checkDecrement(repo, feature)) {
-			final int totalCount = propBean.countValue(null, feature);
-			if (totalCount == 0) {
-				if (isPresent) {
-					featureUninstall(feature);
-					dependencyRemove(repo, feature);
-				} else {
-					logger.error(
-							"Feature count error.",
-							new IllegalStateException(
-									"Feature is missing when should be present."));
-				}
-			}
-			logger.info("Feature removed: {} @ {} {} {}", totalCount,
-					repo.getName(), feature.getName(), feature.getVersion());
-		} else {
-			logger.error("Feature count error.", new IllegalStateException(
-					"Trying to uninstall feature already removed."));
-		}
+		deployment.featureRemove(repo.getName(),
+				Collections.singletonList(feature));
 	}
 
-	/**
-	 * Uninstall feature.
-	 */
-	void featureUninstall(final Feature feature) throws Exception {
-
-		final String name = feature.getName();
-		final String version = feature.getVersion();
-		getFeaturesService().uninstallFeature(name, version);
-
-		logger.info("Feature uninstalled: {} {}", name, version);
-
+	public boolean getAsynchronous() {
+		return asynchronous;
 	}
 
 	public BundleContext getBundleContext() {
 		return bundleContext;
 	}
 
+	public long getCoalescePeriod() {
+		return coalescePeriod;
+	}
+
+	public int getDeployThreads() {
+		return deployThreads;
+	}
+
 	public FeaturesService getFeaturesService() {
 		return featuresService;
 	}
 
+	public boolean getHandleChecksum() {
+		return handleCache.isChecksum();
+	}
+
+	public int getUninstallThreads() {
+		return uninstallThreads;
+	}
+
+	public String getTraceExport() {
+		return traceExport;
+	}
+
+	public boolean getReconcile() {
+		return reconcile;
+	}
+
+	/**
+	 * Deployed file root element is a known features descriptor.
+	 */
+	boolean hasKnownRoot(final File file) {
+		try {
+			final QName root = parseRoot(file);
+			final String name = root.getLocalPart();
+			final String uri = root.getNamespaceURI();
+			if (ROOT_NODE.equals(name)) {
+				if (isKnownFeaturesURI(uri)) {
+					return true;
+				} else {
+					logger.error("Unknown features uri", new Exception(""
+							+ uri));
+				}
+			}
+		} catch (final Exception e) {
+			logger.error(
+					"Unable to parse deployed file " + file.getAbsolutePath(),
+					e);
+		}
+		return false;
+	}
+
 	/**
 	 * Bundle contains stored feature.xml
 	 */
@@ -396,7 +577,57 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	 */
 	public void init() throws Exception {
 		logger.info("Deployer activate.");
+		traceConfigure();
+		try {
+			metrics.register();
+		} catch (final Exception e) {
+			logger.error("Unable to register metrics.", e);
+		}
+		try {
+			planner.register();
+		} catch (final Exception e) {
+			logger.error("Unable to register planner.", e);
+		}
+		/** Coalesced operations must not run on the single timer thread. */
+		if (asynchronous || coalescePeriod > 0) {
+			deployExecutor = new DeployExecutor(deployThreads,
+					DeployExecutor.BACKLOG);
+		}
+		if (uninstallThreads > 1) {
+			uninstallExecutor = UninstallPlan.executor(uninstallThreads);
+			deployment.setUninstallExecutor(uninstallExecutor);
+		}
+		if (coalescePeriod > 0) {
+			coalescer = new DeployCoalescer(coalescePeriod,
+					new DeployCoalescer.Target() {
+						@Override
+						public void deploy(final BundleEventType type,
+								final Bundle bundle, final String repoId,
+								final URL repoUrl, final long timeEvent) {
+							dispatch(type, bundle, repoId, repoUrl, timeEvent);
+						}
+					});
+		}
 		bundleContext.addBundleListener(this);
+		if (reconcile) {
+			final Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						reconcile();
+					} catch (final Exception e) {
+						logger.error("Reconcile failure.", e);
+					}
+				}
+			};
+			final DeployExecutor executor = deployExecutor;
+			if (executor == null) {
+				task.run();
+			} else {
+				/** Do not hold up activation with installs. */
+				executor.execute(RECONCILE_KEY, task);
+			}
+		}
 	}
 
 	/**
@@ -406,13 +637,6 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 		return Feature.DEFAULT_INSTALL_MODE.equals(feature.getInstall());
 	}
 
-	/**
-	 * Verify if feature dependency is currently installed.
-	 */
-	boolean isInstalled(final Dependency depencency) throws Exception {
-		return featureInstalled(depencency) != null;
-	}
-
 	/**
 	 * Feature name space check.
 	 */
@@ -439,24 +663,22 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	}
 
 	/**
-	 * Feature not installed.
-	 */
-	boolean isMissing(final Feature feature) {
-		return !isPresent(feature);
-	}
-
-	/**
-	 * Feature is installed.
-	 */
-	boolean isPresent(final Feature feature) {
-		return getFeaturesService().isInstalled(feature);
-	}
-
-	/**
-	 * Verify if feature dependency is present in any repository.
+	 * Repository was registered by this deployer: from a wrapper bundle
+	 * descriptor with the managed extension, or it still holds counts.
+	 * <p>
+	 * The default feature deployer keeps its .xml descriptors under the
+	 * same wrapper path, those are not ours.
 	 */
-	boolean isRegistered(final Dependency depencency) throws Exception {
-		return featureRegistered(depencency) != null;
+	boolean isWrapperRepo(final Repository repo) throws Exception {
+		final URI uri = repo.getURI();
+		if (uri != null) {
+			final String text = uri.toString();
+			if (text.contains(META_PATH) && text.endsWith("." + EXTENSION)) {
+				return true;
+			}
+		}
+		final String name = repo.getName();
+		return name != null && propBean().hasRepo(name);
 	}
 
 	void logBundleEvent(final BundleEvent event) {
@@ -477,39 +699,148 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	}
 
 	/**
-	 * Parse XML file.
+	 * Parse XML resource.
 	 */
-	Document parse(final File artifact) throws Exception {
-		if (dbf == null) {
-			dbf = DocumentBuilderFactory.newInstance();
-			dbf.setNamespaceAware(true);
+	Document parse(final URL artifact) throws Exception {
+		final DocumentBuilder db = parseBuilder();
+		final InputStream input = artifact.openStream();
+		try {
+			return db.parse(input, artifact.toExternalForm());
+		} finally {
+			input.close();
 		}
-		final DocumentBuilder db = dbf.newDocumentBuilder();
-		db.setErrorHandler(new ErrorHandler() {
-			@Override
-			public void error(final SAXParseException exception)
-					throws SAXException {
-			}
+	}
 
-			@Override
-			public void fatalError(final SAXParseException exception)
-					throws SAXException {
-				throw exception;
-			}
+	/**
+	 * New document builder from the shared factory.
+	 */
+	DocumentBuilder parseBuilder() throws Exception {
+		final DocumentBuilder db;
+		/** Factory is not guaranteed to be thread safe. */
+		synchronized (dbf) {
+			db = dbf.newDocumentBuilder();
+		}
+		db.setErrorHandler(PARSE_HANDLER);
+		return db;
+	}
 
-			@Override
-			public void warning(final SAXParseException exception)
-					throws SAXException {
+	/**
+	 * Namespace aware document builder factory.
+	 * <p>
+	 * Does not load external DTD or entities, nor expand XInclude:
+	 * descriptors can come from any URL.
+	 */
+	static DocumentBuilderFactory parseFactory() {
+		final DocumentBuilderFactory factory = DocumentBuilderFactory
+				.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setExpandEntityReferences(false);
+		factory.setXIncludeAware(false);
+		try {
+			factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			factory.setFeature(
+					"http://xml.org/sax/features/external-general-entities",
+					false);
+			factory.setFeature(
+					"http://xml.org/sax/features/external-parameter-entities",
+					false);
+			factory.setFeature(
+					"http://apache.org/xml/features/nonvalidating/load-external-dtd",
+					false);
+		} catch (final ParserConfigurationException e) {
+			throw new IllegalStateException("Parser can not be secured.", e);
+		}
+		return factory;
+	}
+
+	/**
+	 * Parse XML file root element only.
+	 * <p>
+	 * Stops at the first start element, so the cost does not depend on the
+	 * descriptor size; full well-formedness is verified later by the
+	 * features service when the repository is registered.
+	 */
+	QName parseRoot(final File artifact) throws Exception {
+		final InputStream input = new FileInputStream(artifact);
+		try {
+			final XMLStreamReader reader = xif.createXMLStreamReader(
+					input);
+			try {
+				while (reader.hasNext()) {
+					if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+						return reader.getName();
+					}
+				}
+				throw new IllegalStateException("Missing root element.");
+			} finally {
+				reader.close();
 			}
-		});
-		return db.parse(artifact);
+		} finally {
+			input.close();
+		}
 	}
 
 	/**
-	 * Properties bean.
+	 * Bundle events waiting for a deployer thread.
+	 */
+	int pendingEvents() {
+		final DeployExecutor executor = deployExecutor;
+		final DeployCoalescer coalescer = this.coalescer;
+		return (executor == null ? 0 : executor.pending())
+				+ (coalescer == null ? 0 : coalescer.pending());
+	}
+
+	/**
+	 * Properties bean, shared in-memory state.
 	 */
 	PropBean propBean() {
-		return new PropBean(propFile());
+		PropBean bean = propBean;
+		if (bean == null) {
+			synchronized (this) {
+				bean = propBean;
+				if (bean == null) {
+					bean = new PropBean(propFile());
+					propLoad(bean);
+					propBean = bean;
+				}
+			}
+		}
+		return bean;
+	}
+
+	/**
+	 * Persist state changes of a deployment operation.
+	 */
+	void propFlush() {
+		final DeploymentTrace.Span span = tracer.span("persist", null);
+		final long timeStart = System.nanoTime();
+		boolean isError = false;
+		try {
+			propBean().flush();
+		} catch (final Exception e) {
+			isError = true;
+			logger.error("Unable to save deployer state.", e);
+		} finally {
+			metrics.stateFlush.record(timeStart, isError);
+			tracer.end(span, isError);
+		}
+	}
+
+	/**
+	 * Load deployer state up front, so load time is measured.
+	 */
+	void propLoad(final PropBean bean) {
+		final long timeStart = System.nanoTime();
+		boolean isError = false;
+		try {
+			bean.propLoad();
+		} catch (final Exception e) {
+			/** Nothing is loaded, first use tries again. */
+			isError = true;
+			logger.error("Unable to load deployer state.", e);
+		} finally {
+			metrics.stateLoad.record(timeStart, isError);
+		}
 	}
 
 	/**
@@ -522,25 +853,211 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	}
 
 	/**
-	 * Find repository by name.
+	 * Startup reconciliation.
+	 * <p>
+	 * Compares wrapper bundles present in the framework with registered
+	 * repositories and persisted reference counts, and fixes any drift left
+	 * by events missed while the deployer was down or by a crash.
 	 */
-	Repository repo(final String repoName) {
-		final Repository[] list = getFeaturesService().listRepositories();
-		for (final Repository repo : list) {
-			if (repoName.equals(repo.getName())) {
-				return repo;
+	void reconcile() throws Exception {
+
+		final long timeStart = System.currentTimeMillis();
+
+		final Map<String, URL> wrapperMap = reconcileDiscover();
+
+		final Set<String> repoIdSet = new TreeSet<String>();
+		repoIdSet.addAll(wrapperMap.keySet());
+		repoIdSet.addAll(propBean().repoFeatureMap().keySet());
+		for (final Repository repo : getFeaturesService().listRepositories()) {
+			if (isWrapperRepo(repo) && repo.getName() != null) {
+				repoIdSet.add(repo.getName());
+			}
+		}
+
+		int fixCount = 0;
+		for (final String repoId : repoIdSet) {
+			final DeploymentTrace trace = tracer.begin("RECONCILE", repoId,
+					System.nanoTime());
+			boolean isError = true;
+			final Lock lock = repoLocks.lock(repoId);
+			lock.lock();
+			try {
+				if (reconcileRepo(repoId, wrapperMap.get(repoId))) {
+					fixCount++;
+				}
+				isError = false;
+			} catch (final Exception e) {
+				logger.error("Reconcile failure: " + repoId, e);
+			} finally {
+				lock.unlock();
+				tracer.end(trace, isError);
+			}
+		}
+
+		propFlush();
+
+		logger.info("Reconcile: wrappers={} repos={} fixed={} millis={}",
+				wrapperMap.size(), repoIdSet.size(), fixCount,
+				System.currentTimeMillis() - timeStart);
+
+	}
+
+	/**
+	 * Find wrapper bundles and their descriptors, in parallel.
+	 */
+	Map<String, URL> reconcileDiscover() throws Exception {
+
+		final Bundle[] bundleArray = getBundleContext().getBundles();
+
+		final List<Callable<URL>> taskList = new ArrayList<Callable<URL>>(
+				bundleArray.length);
+		for (final Bundle bundle : bundleArray) {
+			taskList.add(new Callable<URL>() {
+				@Override
+				public URL call() throws Exception {
+					if (bundle.getState() == Bundle.UNINSTALLED) {
+						return null;
+					}
+					return repoUrl(bundle);
+				}
+			});
+		}
+
+		final ExecutorService executor = Executors.newFixedThreadPool(Math
+				.max(1, deployThreads));
+		try {
+			final List<Future<URL>> futureList = executor.invokeAll(taskList);
+			final Map<String, URL> wrapperMap = new HashMap<String, URL>();
+			for (int index = 0; index < bundleArray.length; index++) {
+				final URL repoUrl;
+				try {
+					repoUrl = futureList.get(index).get();
+				} catch (final Exception e) {
+					logger.error("Reconcile discovery failure: "
+							+ bundleArray[index], e);
+					continue;
+				}
+				if (repoUrl != null) {
+					wrapperMap.put(repoId(bundleArray[index]), repoUrl);
+				}
+			}
+			return wrapperMap;
+		} finally {
+			executor.shutdown();
+		}
+
+	}
+
+	/**
+	 * Fix drift of single repository; under repository lock.
+	 * 
+	 * @return true when anything was changed
+	 */
+	boolean reconcileRepo(final String repoId, final URL repoUrl)
+			throws Exception {
+
+		final PropBean propBean = propBean();
+		final boolean isRegistered = hasRepoRegistered(repoId);
+
+		if (repoUrl != null) {
+
+			if (!isRegistered) {
+				logger.warn("Reconcile: wrapper without repository: {}",
+						repoId);
+				repoCreate(repoId, repoUrl);
+				return true;
+			}
+
+			final Repository repo = repo(repoId);
+			final List<Feature> missingList = new ArrayList<Feature>();
+			for (final Feature feature : autoFeatures(repo)) {
+				if (propBean.countValue(repo, feature) == 0) {
+					missingList.add(feature);
+				}
+			}
+			if (missingList.isEmpty()) {
+				return false;
+			}
+			logger.warn("Reconcile: features without counts: {} {}", repoId,
+					FeatureDeployment.featureMap(missingList).keySet());
+			deployment.featureAdd(repoId, missingList);
+			return true;
+
+		}
+
+		boolean isChanged = false;
+
+		if (isRegistered && isWrapperRepo(repo(repoId))) {
+			logger.warn("Reconcile: repository without wrapper: {}", repoId);
+			final Repository repo = repo(repoId);
+			final List<Feature> countedList = new ArrayList<Feature>();
+			for (final Feature feature : autoFeatures(repo)) {
+				if (propBean.countValue(repo, feature) > 0) {
+					countedList.add(feature);
+				}
+			}
+			deployment.featureRemove(repoId, countedList);
+			repoUnregister(repoId, repo);
+			isChanged = true;
+		}
+
+		final List<String> featureIdList = propBean.repoFeatureMap().get(
+				repoId);
+		if (featureIdList == null) {
+			return isChanged;
+		}
+
+		logger.warn("Reconcile: counts without wrapper: {} {}", repoId,
+				featureIdList);
+		final List<Feature> featureList = new ArrayList<Feature>();
+		for (final String featureId : featureIdList) {
+			final Feature feature = deployment.featureById(featureId);
+			if (feature == null) {
+				/** Unknown feature, only drop the count. */
+				propBean.checkDecrement(repoId, featureId);
+			} else {
+				featureList.add(feature);
 			}
 		}
-		return null;
+		/** Together, dependency closure is released once. */
+		deployment.featureRemove(repoId, featureList);
+		return true;
+
+	}
+
+	/**
+	 * Find repository by name.
+	 */
+	Repository repo(final String repoName) {
+		return repoIndex.find(getFeaturesService(), repoName);
 	}
 
 	/**
 	 * Create repository, process auto-install features install.
 	 */
 	void repoCreate(final Bundle bundle) throws Exception {
+		repoCreate(repoId(bundle), repoUrl(bundle));
+	}
 
-		final String repoId = repoId(bundle);
-		final URL repoUrl = repoUrl(bundle);
+	/**
+	 * Create repository, process auto-install features install.
+	 */
+	void repoCreate(final String repoId, final URL repoUrl) throws Exception {
+		final long timeStart = System.nanoTime();
+		boolean isError = true;
+		try {
+			repoCreateTimed(repoId, repoUrl);
+			isError = false;
+		} finally {
+			metrics.repoCreate.record(timeStart, isError);
+		}
+	}
+
+	/**
+	 * Register repository and add its auto-install features.
+	 */
+	void repoCreateTimed(final String repoId, final URL repoUrl)
+			throws Exception {
 
 		logger.info("Repo create: {} {}", repoId, repoUrl);
 
@@ -549,15 +1066,7 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 			throw new IllegalStateException("Repo is present: " + repoId);
 		}
 
-		/** Register repository w/o any feature install. */
-		getFeaturesService().addRepository(repoUrl.toURI(), false);
-
-		if (!hasRepoRegistered(repoId)) {
-			logger.error("Please verify repository file[name/version] vs xml[name/version].");
-			throw new IllegalStateException("Can not register repo: " + repoId);
-		}
-
-		final Repository repo = repo(repoId);
+		final Repository repo = repoRegister(repoId, repoUrl);
 
 		featureAdd(repo);
 
@@ -567,9 +1076,28 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 	 * Delete repository, process auto-install features uninstall.
 	 */
 	void repoDelete(final Bundle bundle) throws Exception {
+		repoDelete(repoId(bundle), repoUrl(bundle));
+	}
 
-		final String repoId = repoId(bundle);
-		final URL repoUrl = repoUrl(bundle);
+	/**
+	 * Delete repository, process auto-install features uninstall.
+	 */
+	void repoDelete(final String repoId, final URL repoUrl) throws Exception {
+		final long timeStart = System.nanoTime();
+		boolean isError = true;
+		try {
+			repoDeleteTimed(repoId, repoUrl);
+			isError = false;
+		} finally {
+			metrics.repoDelete.record(timeStart, isError);
+		}
+	}
+
+	/**
+	 * Remove auto-install features of repository and unregister it.
+	 */
+	void repoDeleteTimed(final String repoId, final URL repoUrl)
+			throws Exception {
 
 		logger.info("Repo delete: {} {}", repoId, repoUrl);
 
@@ -582,13 +1110,7 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 
 		featureRemove(repo);
 
-		/** Unregister repository w/o any feature uninstall. */
-		getFeaturesService().removeRepository(repo.getURI(), false);
-
-		if (hasRepoRegistered(repoId)) {
-			logger.error("Can not unregister repository from feature service.");
-			throw new IllegalStateException("Repo is present: " + repoId);
-		}
+		repoUnregister(repoId, repo);
 
 	}
 
@@ -602,10 +1124,161 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 		return bundle.getSymbolicName();
 	}
 
+	/**
+	 * Register repository w/o any feature install.
+	 */
+	Repository repoRegister(final String repoId, final URL repoUrl)
+			throws Exception {
+
+		final DeploymentTrace.Span span = tracer.span("register", repoId);
+		boolean isError = true;
+		try {
+			getFeaturesService().addRepository(repoUrl.toURI(), false);
+			isError = false;
+		} finally {
+			tracer.end(span, isError);
+		}
+		featureIndex.reset();
+
+		if (!hasRepoRegistered(repoId)) {
+			logger.error("Please verify repository file[name/version] vs xml[name/version].");
+			throw new IllegalStateException("Can not register repo: " + repoId);
+		}
+
+		return repo(repoId);
+
+	}
+
+	/**
+	 * Unregister repository w/o any feature uninstall.
+	 */
+	void repoUnregister(final String repoId, final Repository repo)
+			throws Exception {
+
+		final DeploymentTrace.Span span = tracer.span("unregister", repoId);
+		boolean isError = true;
+		try {
+			getFeaturesService().removeRepository(repo.getURI(), false);
+			isError = false;
+		} finally {
+			tracer.end(span, isError);
+		}
+		repoIndex.remove(repoId);
+		featureIndex.reset();
+
+		if (hasRepoRegistered(repoId)) {
+			logger.error("Can not unregister repository from feature service.");
+			throw new IllegalStateException("Repo is present: " + repoId);
+		}
+
+	}
+
+	/**
+	 * Update repository, apply only auto-install feature differences.
+	 * <p>
+	 * Dependency closures of old and new auto-install features are compared:
+	 * members the repository references which are outside the new closure
+	 * are released, new members are added, everything else stays installed
+	 * and counted. Content changes of a feature which keeps its version are
+	 * not picked up. When the new descriptor can not be registered, the old
+	 * one is registered again.
+	 */
+	void repoUpdate(final String repoId, final URL repoUrl) throws Exception {
+
+		logger.info("Repo update: {} {}", repoId, repoUrl);
+
+		if (!hasRepoRegistered(repoId)) {
+			logger.warn("Repository to update is not registered: {}", repoId);
+			repoCreate(repoId, repoUrl);
+			return;
+		}
+
+		/** Verify new descriptor before any change. */
+		final DeploymentTrace.Span span = tracer.span("parse", repoId);
+		boolean isError = true;
+		try {
+			final String repoName = parse(repoUrl).getDocumentElement()
+					.getAttribute("name");
+			if (!repoId.equals(repoName)) {
+				logger.error("Please verify repository file[name/version] vs xml[name/version].");
+				throw new IllegalStateException("Repo name changed: "
+						+ repoId + " -> " + repoName);
+			}
+			isError = false;
+		} finally {
+			tracer.end(span, isError);
+		}
+
+		final Repository repoPast = repo(repoId);
+		final URI pastUri = repoPast.getURI();
+
+		repoUnregister(repoId, repoPast);
+		final Repository repoNext;
+		try {
+			repoNext = repoRegister(repoId, repoUrl);
+		} catch (final Exception e) {
+			logger.error("Repo update failed, restoring previous: {} {}",
+					repoId, pastUri);
+			try {
+				repoRegister(repoId, pastUri.toURL());
+			} catch (final Exception restore) {
+				logger.error("Unable to restore previous repository.",
+						restore);
+			}
+			throw e;
+		}
+
+		deployment.repoUpdateApply(repoId, autoFeatures(repoNext));
+
+	}
+
 	/**
 	 * Repository feature.xml stored in the bundle.
 	 */
 	URL repoUrl(final Bundle bundle) {
+
+		final long bundleId = bundle.getBundleId();
+
+		if (bundle.getState() == Bundle.UNINSTALLED) {
+			/** Last verdict, entries may be gone. */
+			final WrapperCache.Entry entry = wrapperCache.evict(bundleId);
+			return entry == null ? repoUrlFind(bundle) : entry.repoUrl;
+		}
+
+		final long modified = bundle.getLastModified();
+
+		final WrapperCache.Entry entry = wrapperCache.verdict(bundleId,
+				modified);
+		if (entry != null) {
+			return entry.repoUrl;
+		}
+
+		final URL repoUrl = repoUrlFind(bundle);
+		wrapperCache.verdict(bundleId, modified, repoUrl);
+		return repoUrl;
+
+	}
+
+	/**
+	 * Repository feature.xml of wrapper bundle: manifest header lookup, with
+	 * entry search fallback for wrappers built without the header, or with
+	 * a header to a descriptor which is not managed.
+	 */
+	URL repoUrlFind(final Bundle bundle) {
+		final Dictionary<String, String> headers = bundle.getHeaders("");
+		final String path = headers == null ? null : headers.get(HEADER);
+		if (path != null && !path.endsWith("." + EXTENSION)) {
+			/** Not a managed descriptor, look at entries instead. */
+			logger.debug("Repository bundle header ignored: {} {}", bundle,
+					path);
+		} else if (path != null) {
+			final URL repoUrl = bundle.getEntry(path);
+			if (repoUrl == null) {
+				logger.error("Repository bundle header entry is missing.",
+						new IllegalStateException(bundle + " " + path));
+			}
+			return repoUrl;
+		}
 		final List<URL> list = repoUrlList(bundle);
 		switch (list.size()) {
 		case 0:
@@ -643,14 +1316,128 @@ public class FeatureDeploymentListener implements ArtifactUrlTransformer,
 
 	}
 
+	/**
+	 * Keep repository and feature indexes in sync with feature service.
+	 */
+	@Override
+	public void repositoryEvent(final RepositoryEvent event) {
+		final Repository repo = event.getRepository();
+		switch (event.getType()) {
+		case RepositoryAdded:
+			repoIndex.put(repo);
+			break;
+		case RepositoryRemoved:
+			repoIndex.remove(repo.getName());
+			break;
+		}
+		featureIndex.reset();
+	}
+
+	/**
+	 * Root element sniffer factory.
+	 * <p>
+	 * Namespace aware, does not load external DTD or entities.
+	 */
+	static XMLInputFactory rootFactory() {
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(
+				XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		return factory;
+	}
+
+	/**
+	 * Run repository install/uninstall on deployer threads instead of the
+	 * framework event dispatch thread; takes effect on activate.
+	 */
+	public void setAsynchronous(final boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+
 	public void setBundleContext(final BundleContext bundleContext) {
 		this.bundleContext = bundleContext;
 	}
 
+	/**
+	 * Quiet period which collapses a burst of events of one repository into
+	 * a single net operation, millis; 0 disables; takes effect on activate.
+	 * Net operations run on deployer threads, as if asynchronous.
+	 */
+	public void setCoalescePeriod(final long coalescePeriod) {
+		this.coalescePeriod = coalescePeriod;
+	}
+
+	/**
+	 * Number of deployer threads in asynchronous or coalescing mode.
+	 */
+	public void setDeployThreads(final int deployThreads) {
+		this.deployThreads = deployThreads;
+	}
+
 	public void setFeaturesService(final FeaturesService featuresService) {
 		this.featuresService = featuresService;
 	}
 
+	/**
+	 * Also compare content checksum when validating cached canHandle verdict,
+	 * for file systems with coarse modification time.
+	 */
+	public void setHandleChecksum(final boolean handleChecksum) {
+		handleCache.setChecksum(handleChecksum);
+	}
+
+	/**
+	 * Reconcile wrapper bundles with deployer state on activate; runs on a
+	 * deployer thread in asynchronous mode, off by default.
+	 */
+	public void setReconcile(final boolean reconcile) {
+		this.reconcile = reconcile;
+	}
+
+	/**
+	 * Trace exporters, comma separated: ring, log; empty to disable.
+	 */
+	public void setTraceExport(final String traceExport) {
+		this.traceExport = traceExport;
+	}
+
+	/**
+	 * Parallel feature uninstalls on repository delete; 1 is sequential.
+	 */
+	public void setUninstallThreads(final int uninstallThreads) {
+		this.uninstallThreads = uninstallThreads;
+	}
+
+	/**
+	 * Apply trace exporter configuration.
+	 */
+	void traceConfigure() {
+		tracer.removeExporter(traceLog);
+		tracer.removeExporter(traceRing);
+		final String traceExport = this.traceExport;
+		if (traceExport == null) {
+			return;
+		}
+		for (final String name : traceExport.split(",")) {
+			final String exporter = name.trim();
+			if ("log".equals(exporter)) {
+				tracer.addExporter(traceLog);
+			} else if ("ring".equals(exporter)) {
+				tracer.addExporter(traceRing);
+			} else if (exporter.length() > 0) {
+				logger.error("Unknown trace exporter: {}", exporter);
+			}
+		}
+	}
+
+	/**
+	 * Recent traces kept by ring exporter, as text.
+	 */
+	List<String> traceLines() {
+		return traceRing.lines();
+	}
+
 	/**
 	 * Convert to feature wrapper URL.
 	 */
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.FeaturesService;
+
+/**
+ * Registered feature index based on feature name and version.
+ * <p>
+ * Built from a single feature service listing on first use, dropped on
+ * repository changes.
+ */
+public class FeatureIndex {
+
+	/**
+	 * Index key for feature/dependency identity.
+	 */
+	static String key(final String name, final String version) {
+		return name + "/" + version;
+	}
+
+	private Map<String, Feature> featureMap;
+
+	private final Object lock = new Object();
+
+	/** Index generation, advanced on every reset. */
+	private long version;
+
+	/**
+	 * Find registered feature, build index when missing.
+	 */
+	Feature find(final FeaturesService service, final String name,
+			final String version) throws Exception {
+		return map(service).get(key(name, version));
+	}
+
+	/**
+	 * Current index, build when missing.
+	 */
+	Map<String, Feature> map(final FeaturesService service)
+			throws Exception {
+
+		final long buildVersion;
+		synchronized (lock) {
+			if (featureMap != null) {
+				return featureMap;
+			}
+			buildVersion = version;
+		}
+
+		/** List outside of the lock, feature service can be slow. */
+		final Feature[] featureArray = service.listFeatures();
+		final Map<String, Feature> buildMap = new HashMap<String, Feature>(
+				featureArray.length * 2);
+		for (final Feature feature : featureArray) {
+			final String key = key(feature.getName(), feature.getVersion());
+			/** Keep first match, same as linear scan. */
+			if (!buildMap.containsKey(key)) {
+				buildMap.put(key, feature);
+			}
+		}
+		final Map<String, Feature> readMap = Collections
+				.unmodifiableMap(buildMap);
+
+		synchronized (lock) {
+			/** Do not publish index built before a reset. */
+			if (version == buildVersion) {
+				featureMap = readMap;
+			}
+		}
+		return readMap;
+
+	}
+
+	/**
+	 * Drop index, next lookup rebuilds it.
+	 */
+	void reset() {
+		synchronized (lock) {
+			version++;
+			featureMap = null;
+		}
+	}
+
+	/**
+	 * Number of indexed features, zero when not built.
+	 */
+	int size() {
+		synchronized (lock) {
+			return featureMap == null ? 0 : featureMap.size();
+		}
+	}
+
+}
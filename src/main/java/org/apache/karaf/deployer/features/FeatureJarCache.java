@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content addressed on-disk cache of generated wrapper bundles.
+ * <p>
+ * Wrapper jar is stored under the SHA-1 of wrapper format, descriptor name
+ * and content, so an unchanged descriptor is served as a plain file stream
+ * and any edit makes a new entry. A cached jar which can not be opened is
+ * dropped and generated again. Entries are evicted least recently used first once
+ * their total size exceeds the limit; recency survives restarts as file
+ * modification time.
+ */
+public class FeatureJarCache {
+
+	/**
+	 * Cached wrapper jar.
+	 */
+	static final class Entry {
+
+		final File file;
+		final long size;
+
+		Entry(final File file, final long size) {
+			this.file = file;
+			this.size = size;
+		}
+
+	}
+
+	/**
+	 * Wrapper format version; change with {@link FeatureTransformer} output,
+	 * so jars cached by an older deployer are not served.
+	 */
+	static final String FORMAT = "2";
+
+	/** Default total size limit, bytes. */
+	static final long LIMIT = 64L * 1024 * 1024;
+
+	/** Cached wrapper jar file suffix. */
+	static final String SUFFIX = ".jar";
+
+	/** Wrapper jar being generated. */
+	static final String TEMP = ".tmp";
+
+	/**
+	 * Descriptor digest, format and name first.
+	 */
+	static MessageDigest digest(final String name) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			throw (IOException) new IOException("Missing SHA-1.").initCause(e);
+		}
+		digest.update(FORMAT.getBytes(PropBean.UTF_8));
+		digest.update((byte) 0);
+		digest.update(name.getBytes(PropBean.UTF_8));
+		digest.update((byte) 0);
+		return digest;
+	}
+
+	static String hex(final byte[] bytes) {
+		final StringBuilder text = new StringBuilder(bytes.length * 2);
+		for (final byte value : bytes) {
+			text.append(Character.forDigit((value >> 4) & 0xF, 16));
+			text.append(Character.forDigit(value & 0xF, 16));
+		}
+		return text.toString();
+	}
+
+	/** Entries by key, least recently used first; guarded by itself. */
+	private final Map<String, Entry> entryMap = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private final File folder;
+
+	private final long limit;
+
+	private final Logger logger = LoggerFactory
+			.getLogger(FeatureJarCache.class);
+
+	/** Total size of entries; guarded by entryMap. */
+	private long total;
+
+	FeatureJarCache(final File folder, final long limit) {
+		this.folder = folder;
+		this.limit = limit;
+	}
+
+	/**
+	 * Generate wrapper jar, store under digest of what was actually read,
+	 * open it.
+	 */
+	InputStream build(final URL repoUrl, final String name)
+			throws IOException {
+
+		final File temp = File.createTempFile("feature-", TEMP, folder);
+		final String key;
+		boolean isError = true;
+		try {
+			final MessageDigest digest = digest(name);
+			final InputStream input = new DigestInputStream(
+					repoUrl.openStream(), digest);
+			try {
+				FeatureTransformer.transform(name, input,
+						new BufferedOutputStream(new FileOutputStream(temp),
+								FeatureTransformer.BUFFER));
+			} finally {
+				input.close();
+			}
+			key = hex(digest.digest());
+			isError = false;
+		} finally {
+			if (isError) {
+				temp.delete();
+			}
+		}
+
+		final File file = new File(folder, key + SUFFIX);
+		synchronized (entryMap) {
+			final Entry present = entryMap.get(key);
+			if (present != null) {
+				/** Concurrent build of the same content won. */
+				final InputStream input = openEntry(key, present);
+				if (input != null) {
+					temp.delete();
+					return input;
+				}
+			}
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file)) {
+					temp.delete();
+					throw new IOException("Can not rename: " + temp);
+				}
+			}
+			final Entry entry = new Entry(file, file.length());
+			entryMap.put(key, entry);
+			total += entry.size;
+			evict();
+			logger.info("Wrapper cached: {} {}", name, key);
+			/** Open before a concurrent build can evict it. */
+			return new FileInputStream(file);
+		}
+
+	}
+
+	/**
+	 * Drop least recently used entries over the limit, keep the newest; an
+	 * entry which can not be deleted stays, counted, for next eviction.
+	 */
+	private void evict() {
+		final Iterator<Entry> iterator = entryMap.values().iterator();
+		int count = entryMap.size() - 1;
+		while (total > limit && count-- > 0) {
+			final Entry entry = iterator.next();
+			if (!entry.file.delete() && entry.file.exists()) {
+				logger.warn("Can not delete cached wrapper: {}", entry.file);
+				continue;
+			}
+			iterator.remove();
+			total -= entry.size;
+		}
+	}
+
+	/**
+	 * Cache key of current descriptor content.
+	 */
+	String key(final URL repoUrl, final String name) throws IOException {
+		final MessageDigest digest = digest(name);
+		final InputStream input = repoUrl.openStream();
+		try {
+			final byte[] buffer = new byte[FeatureTransformer.BUFFER];
+			int size;
+			while ((size = input.read(buffer)) >= 0) {
+				digest.update(buffer, 0, size);
+			}
+		} finally {
+			input.close();
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Index jars kept from previous run, drop unfinished ones.
+	 */
+	void load() {
+		final File[] fileArray = folder.listFiles();
+		if (fileArray == null) {
+			return;
+		}
+		Arrays.sort(fileArray, new Comparator<File>() {
+			@Override
+			public int compare(final File one, final File two) {
+				final long delta = one.lastModified() - two.lastModified();
+				return delta < 0 ? -1 : delta > 0 ? 1 : 0;
+			}
+		});
+		synchronized (entryMap) {
+			for (final File file : fileArray) {
+				final String fileName = file.getName();
+				if (fileName.endsWith(SUFFIX)) {
+					final Entry entry = new Entry(file, file.length());
+					entryMap.put(fileName.substring(0, fileName.length()
+							- SUFFIX.length()), entry);
+					total += entry.size;
+				} else if (!file.delete()) {
+					logger.warn("Can not delete stale file: {}", file);
+				}
+			}
+			evict();
+		}
+	}
+
+	/**
+	 * Wrapper bundle of descriptor, generated on a miss.
+	 */
+	InputStream open(final URL repoUrl) throws IOException {
+		final String name = FeatureTransformer.name(repoUrl);
+		final String key = key(repoUrl, name);
+		synchronized (entryMap) {
+			final Entry entry = entryMap.get(key);
+			if (entry != null) {
+				final InputStream input = openEntry(key, entry);
+				if (input != null) {
+					/** Recency for next start. */
+					entry.file.setLastModified(System.currentTimeMillis());
+					return input;
+				}
+			}
+		}
+		return build(repoUrl, name);
+	}
+
+	/**
+	 * Open cached jar, drop entry when it can not be opened; under entry map
+	 * lock.
+	 */
+	private InputStream openEntry(final String key, final Entry entry) {
+		try {
+			return new FileInputStream(entry.file);
+		} catch (final FileNotFoundException e) {
+			logger.warn("Cached wrapper is gone, generating again: {}",
+					entry.file);
+			entryMap.remove(key);
+			total -= entry.size;
+			return null;
+		}
+	}
+
+	int size() {
+		synchronized (entryMap) {
+			return entryMap.size();
+		}
+	}
+
+	long total() {
+		synchronized (entryMap) {
+			return total;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+
+/**
+ * Transitive feature dependency resolver.
+ * <p>
+ * Computes the dependency closure of a feature list once, looking up every
+ * distinct dependency a single time, fails on unregistered dependencies and
+ * on cycles, and orders the closure topologically, dependencies first.
+ */
+public class FeatureResolver {
+
+	/**
+	 * Registered feature lookup.
+	 */
+	interface Catalog {
+
+		/**
+		 * Registered feature for dependency, or null.
+		 */
+		Feature find(Dependency dependency) throws Exception;
+
+	}
+
+	private final Catalog catalog;
+
+	/** Resolved direct dependencies by feature id. */
+	private final Map<String, List<Feature>> dependencyMap = new HashMap<String, List<Feature>>();
+
+	/** Dependency lookups by name/version. */
+	private final Map<String, Feature> findMap = new HashMap<String, Feature>();
+
+	/** Closure in topological order, by feature id. */
+	private final Map<String, Feature> orderMap = new LinkedHashMap<String, Feature>();
+
+	FeatureResolver(final Catalog catalog) {
+		this.catalog = catalog;
+	}
+
+	/**
+	 * Resolved direct dependencies of a feature in the closure.
+	 */
+	List<Feature> dependencies(final Feature feature) {
+		final List<Feature> dependencyList = dependencyMap.get(feature.getId());
+		if (dependencyList == null) {
+			return Collections.emptyList();
+		}
+		return dependencyList;
+	}
+
+	/**
+	 * Registered feature for dependency, looked up once.
+	 */
+	Feature find(final Feature feature, final Dependency dependency)
+			throws Exception {
+		final String key = FeatureIndex.key(dependency.getName(),
+				dependency.getVersion());
+		if (findMap.containsKey(key)) {
+			return findMap.get(key);
+		}
+		final Feature found = catalog.find(dependency);
+		if (found == null) {
+			throw new IllegalStateException(
+					"Missing feature dependency, not registered: " + feature
+							+ " -> " + dependency);
+		}
+		findMap.put(key, found);
+		return found;
+	}
+
+	/**
+	 * Closure of given features, dependencies before dependents.
+	 */
+	List<Feature> resolve(final List<Feature> featureList) throws Exception {
+		final List<Feature> pathList = new ArrayList<Feature>();
+		final Set<String> pathSet = new HashSet<String>();
+		for (final Feature feature : featureList) {
+			visit(feature, pathList, pathSet);
+		}
+		return new ArrayList<Feature>(orderMap.values());
+	}
+
+	int size() {
+		return orderMap.size();
+	}
+
+	/**
+	 * Depth first visit, feature is ordered after its dependencies.
+	 */
+	void visit(final Feature feature, final List<Feature> pathList,
+			final Set<String> pathSet) throws Exception {
+
+		final String featureId = feature.getId();
+
+		if (orderMap.containsKey(featureId)) {
+			return;
+		}
+
+		if (!pathSet.add(featureId)) {
+			final StringBuilder text = new StringBuilder();
+			boolean isCycle = false;
+			for (final Feature member : pathList) {
+				isCycle |= member.getId().equals(featureId);
+				if (isCycle) {
+					text.append(member.getId()).append(" -> ");
+				}
+			}
+			text.append(featureId);
+			throw new IllegalStateException("Feature dependency cycle: "
+					+ text);
+		}
+		pathList.add(feature);
+
+		final List<Feature> dependencyList = new ArrayList<Feature>();
+		for (final Dependency dependency : feature.getDependencies()) {
+			final Feature resolved = find(feature, dependency);
+			dependencyList.add(resolved);
+			visit(resolved, pathList, pathSet);
+		}
+		dependencyMap.put(featureId, dependencyList);
+
+		pathList.remove(pathList.size() - 1);
+		pathSet.remove(featureId);
+
+		orderMap.put(featureId, feature);
+
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import org.apache.karaf.util.DeployerUtils;
+import org.osgi.framework.Constants;
+
+/**
+ * Streaming repository wrapper bundle generator.
+ * <p>
+ * Writes manifest and descriptor entry straight into the target stream,
+ * copying the descriptor once through a fixed size buffer, so heap use
+ * does not depend on the descriptor size. Layout is the same as the one
+ * of the default feature deployer, plus the {@value #HEADER} header for
+ * descriptors managed by this deployer.
+ */
+public class FeatureTransformer {
+
+	/** Descriptor copy buffer size. */
+	static final int BUFFER = 64 * 1024;
+
+	/** See {@link FeatureDeploymentListener#HEADER}. */
+	static final String HEADER = FeatureDeploymentListener.HEADER;
+
+	/**
+	 * Copy stream into stream.
+	 */
+	static long copy(final InputStream input, final OutputStream output)
+			throws IOException {
+		final byte[] buffer = new byte[BUFFER];
+		long count = 0;
+		int size;
+		while ((size = input.read(buffer)) >= 0) {
+			output.write(buffer, 0, size);
+			count += size;
+		}
+		return count;
+	}
+
+	/**
+	 * Wrapper bundle manifest; only managed descriptors point to their entry,
+	 * other wrappers stay with the default feature deployer.
+	 */
+	static Manifest manifest(final String name, final String path) {
+		final String[] part = DeployerUtils.extractNameVersionType(name);
+		final Manifest manifest = new Manifest();
+		final Attributes attributes = manifest.getMainAttributes();
+		attributes.putValue("Manifest-Version", "2");
+		attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+		attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, part[0]);
+		attributes.putValue(Constants.BUNDLE_VERSION, part[1]);
+		if (name.endsWith("." + FeatureDeploymentListener.EXTENSION)) {
+			attributes.putValue(HEADER, path);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Descriptor file name, maven URL mapped to repository layout.
+	 */
+	static String name(final URL url) {
+		final String path = path(url);
+		final int index = path.lastIndexOf('/');
+		return index < 0 ? path : path.substring(index + 1);
+	}
+
+	/**
+	 * Descriptor path, maven URL mapped to repository layout.
+	 */
+	static String path(final URL url) {
+		if (!"mvn".equals(url.getProtocol())) {
+			return url.getPath();
+		}
+		final String[] part = url.toExternalForm().substring(4).split("/");
+		if (part.length < 3 || part.length > 5) {
+			return url.getPath();
+		}
+		final String groupId = part[0];
+		final String artifactId = part[1];
+		final String version = part[2];
+		final String type = part.length >= 4 ? "." + part[3] : ".jar";
+		final String qualifier = part.length >= 5 ? "-" + part[4] : "";
+		return groupId.replace('.', '/') + "/" + artifactId + "/" + version
+				+ "/" + artifactId + "-" + version + qualifier + type;
+	}
+
+	/**
+	 * Write wrapper bundle of a descriptor; closes the target stream.
+	 */
+	static void transform(final URL url, final OutputStream output)
+			throws IOException {
+		final InputStream input;
+		try {
+			input = url.openStream();
+		} catch (final IOException e) {
+			output.close();
+			throw e;
+		}
+		try {
+			transform(name(url), input, output);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Write wrapper bundle of a named descriptor stream; closes the target
+	 * stream.
+	 */
+	static void transform(final String name, final InputStream input,
+			final OutputStream output) throws IOException {
+
+		final String entry = FeatureDeploymentListener.META_PATH.substring(1)
+				+ name;
+
+		final JarOutputStream jar = new JarOutputStream(output);
+		try {
+			jar.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+			manifest(name, "/" + entry).write(jar);
+			jar.closeEntry();
+			jar.putNextEntry(new ZipEntry("META-INF/"));
+			jar.closeEntry();
+			jar.putNextEntry(new ZipEntry(
+					FeatureDeploymentListener.META_PATH.substring(1)));
+			jar.closeEntry();
+			jar.putNextEntry(new ZipEntry(entry));
+			copy(input, jar);
+			jar.closeEntry();
+		} finally {
+			jar.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.url.AbstractURLStreamHandlerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * URL handler for the {@value FeatureDeploymentListener#PROTOCOL} protocol:
+ * {@code feature:<descriptor-url>} opens a repository wrapper bundle.
+ * <p>
+ * Wrapper is served from the content addressed {@link FeatureJarCache} in
+ * the bundle data area. Without cache, it is streamed into a spool file
+ * which is deleted when the stream closes; never assembled in memory.
+ */
+public class FeatureURLHandler extends AbstractURLStreamHandlerService {
+
+	/**
+	 * Wrapper bundle connection.
+	 */
+	class Connection extends URLConnection {
+
+		final URL repoUrl;
+
+		Connection(final URL url, final URL repoUrl) {
+			super(url);
+			this.repoUrl = repoUrl;
+		}
+
+		@Override
+		public void connect() throws IOException {
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			try {
+				return open(repoUrl);
+			} catch (final IOException e) {
+				logger.error("Error opening features xml url", e);
+				throw e;
+			}
+		}
+
+	}
+
+	/**
+	 * Spool file stream, deletes the file on close.
+	 */
+	static class SpoolInputStream extends FileInputStream {
+
+		final File file;
+
+		SpoolInputStream(final File file) throws IOException {
+			super(file);
+			this.file = file;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				file.delete();
+			}
+		}
+
+	}
+
+	/** Bundle data area folder for cached wrapper jars. */
+	static final String CACHE = "wrapper";
+
+	/** Bundle data area folder for spool files. */
+	static final String SPOOL = "spool";
+
+	static final String SYNTAX = "feature: xml-uri";
+
+	private volatile BundleContext bundleContext;
+
+	private volatile FeatureJarCache cache;
+
+	/** Wrapper cache size limit, bytes; 0 disables the cache. */
+	private volatile long cacheSize = FeatureJarCache.LIMIT;
+
+	private final Logger logger = LoggerFactory
+			.getLogger(FeatureURLHandler.class);
+
+	/**
+	 * Folder in bundle data area, null when there is none.
+	 */
+	File folder(final String name) {
+		final BundleContext context = bundleContext;
+		final File data = context == null ? null : context
+				.getDataFile(name);
+		if (data == null) {
+			return null;
+		}
+		if (!data.isDirectory() && !data.mkdirs() && !data.isDirectory()) {
+			logger.warn("Can not create data folder: {}", data);
+			return null;
+		}
+		return data;
+	}
+
+	public BundleContext getBundleContext() {
+		return bundleContext;
+	}
+
+	public long getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Component activate, drop spool files left by a crash, load cache.
+	 */
+	public void init() {
+		final File folder = folder(SPOOL);
+		final File[] fileArray = folder == null ? null : folder.listFiles();
+		if (fileArray != null) {
+			for (final File file : fileArray) {
+				if (!file.delete()) {
+					logger.warn("Can not delete spool file: {}", file);
+				}
+			}
+		}
+		final File cacheFolder = cacheSize > 0 ? folder(CACHE) : null;
+		if (cacheFolder != null) {
+			final FeatureJarCache cache = new FeatureJarCache(cacheFolder,
+					cacheSize);
+			cache.load();
+			this.cache = cache;
+		}
+	}
+
+	/**
+	 * Wrapper bundle stream, from cache when enabled.
+	 */
+	InputStream open(final URL repoUrl) throws IOException {
+		final FeatureJarCache cache = this.cache;
+		if (cache == null) {
+			return spool(repoUrl);
+		}
+		return cache.open(repoUrl);
+	}
+
+	@Override
+	public URLConnection openConnection(final URL url) throws IOException {
+		final String path = url.getPath();
+		if (path == null || path.trim().length() == 0) {
+			throw new MalformedURLException(
+					"Path cannot be null or empty. Syntax: " + SYNTAX);
+		}
+		final URL repoUrl = new URL(path);
+		logger.debug("Features xml URL is: [{}]", repoUrl);
+		return new Connection(url, repoUrl);
+	}
+
+	public void setBundleContext(final BundleContext bundleContext) {
+		this.bundleContext = bundleContext;
+	}
+
+	/**
+	 * Wrapper cache size limit, bytes; 0 disables the cache; takes effect
+	 * on activate.
+	 */
+	public void setCacheSize(final long cacheSize) {
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Write wrapper bundle into a fresh spool file, open it.
+	 */
+	InputStream spool(final URL repoUrl) throws IOException {
+		final File file = File.createTempFile("feature-", ".jar",
+				folder(SPOOL));
+		boolean isError = true;
+		try {
+			FeatureTransformer.transform(repoUrl, new BufferedOutputStream(
+					new FileOutputStream(file), FeatureTransformer.BUFFER));
+			final InputStream input = new SpoolInputStream(file);
+			isError = false;
+			return input;
+		} finally {
+			if (isError) {
+				file.delete();
+			}
+		}
+	}
+
+}
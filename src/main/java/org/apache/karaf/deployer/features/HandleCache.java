@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Deployed file verdict cache used by canHandle.
+ * <p>
+ * Entries are keyed by file path and remain valid while file size and
+ * modification time (and optionally content checksum) are unchanged.
+ */
+public class HandleCache {
+
+	/**
+	 * Deployed file state with verdict.
+	 */
+	static final class Entry {
+
+		final long checksum;
+		final long length;
+		final long modified;
+		final boolean verdict;
+
+		Entry(final long length, final long modified, final long checksum,
+				final boolean verdict) {
+			this.length = length;
+			this.modified = modified;
+			this.checksum = checksum;
+			this.verdict = verdict;
+		}
+
+		/**
+		 * Same file state, ignoring verdict.
+		 */
+		boolean isSame(final Entry that) {
+			return length == that.length && modified == that.modified
+					&& checksum == that.checksum;
+		}
+
+		Entry with(final boolean verdict) {
+			return new Entry(length, modified, checksum, verdict);
+		}
+
+	}
+
+	/** Default stale entry sweep interval, millis. */
+	static final long SWEEP_INTERVAL = 60 * 1000;
+
+	private volatile boolean checksum;
+
+	private final ConcurrentMap<String, Entry> entryMap = new ConcurrentHashMap<String, Entry>();
+
+	private volatile long sweepInterval = SWEEP_INTERVAL;
+
+	private volatile long sweepTime;
+
+	/**
+	 * Content checksum, only when enabled.
+	 */
+	long checksum(final File file) throws IOException {
+		if (!checksum) {
+			return 0;
+		}
+		final CRC32 crc = new CRC32();
+		final byte[] buffer = new byte[8192];
+		final InputStream input = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = input.read(buffer)) >= 0) {
+				crc.update(buffer, 0, count);
+			}
+		} finally {
+			input.close();
+		}
+		return crc.getValue();
+	}
+
+	void clear() {
+		entryMap.clear();
+	}
+
+	/**
+	 * Forget file verdict.
+	 */
+	void evict(final File file) {
+		entryMap.remove(file.getAbsolutePath());
+	}
+
+	boolean isChecksum() {
+		return checksum;
+	}
+
+	void setChecksum(final boolean checksum) {
+		this.checksum = checksum;
+		clear();
+	}
+
+	void setSweepInterval(final long sweepInterval) {
+		this.sweepInterval = sweepInterval;
+	}
+
+	int size() {
+		return entryMap.size();
+	}
+
+	/**
+	 * Capture current file state, verdict is not yet known.
+	 */
+	Entry state(final File file) throws IOException {
+		return new Entry(file.length(), file.lastModified(), checksum(file),
+				false);
+	}
+
+	/**
+	 * Evict entries for files which went away, at most once per interval.
+	 */
+	void sweep() {
+		final long timeNow = System.currentTimeMillis();
+		if (timeNow - sweepTime < sweepInterval) {
+			return;
+		}
+		sweepTime = timeNow;
+		final Iterator<Map.Entry<String, Entry>> iterator = entryMap
+				.entrySet().iterator();
+		while (iterator.hasNext()) {
+			if (!new File(iterator.next().getKey()).isFile()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Cached verdict for file in given state, or null when unknown.
+	 */
+	Boolean verdict(final File file, final Entry state) {
+		final Entry entry = entryMap.get(file.getAbsolutePath());
+		if (entry == null || !entry.isSame(state)) {
+			return null;
+		}
+		return entry.verdict;
+	}
+
+	/**
+	 * Remember verdict for file in given state.
+	 */
+	void verdict(final File file, final Entry state, final boolean verdict) {
+		entryMap.put(file.getAbsolutePath(), state.with(verdict));
+	}
+
+}
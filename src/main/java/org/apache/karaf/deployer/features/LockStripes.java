@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks selected by key hash.
+ * <p>
+ * Different keys may share a stripe, so a thread must never hold more than
+ * one stripe of the same instance at a time.
+ */
+public class LockStripes {
+
+	/** Default number of stripes. */
+	static final int COUNT = 32;
+
+	private final Lock[] lockArray;
+
+	LockStripes() {
+		this(COUNT);
+	}
+
+	LockStripes(final int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Invalid count: " + count);
+		}
+		lockArray = new Lock[count];
+		for (int index = 0; index < count; index++) {
+			lockArray[index] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Stripe index for a key.
+	 */
+	int index(final Object key) {
+		final int hash = key.hashCode();
+		/** Spread high bits, same as hash map. */
+		final int spread = hash ^ (hash >>> 16);
+		return (spread & 0x7FFFFFFF) % lockArray.length;
+	}
+
+	/**
+	 * Lock stripe for a key.
+	 */
+	Lock lock(final Object key) {
+		return lockArray[index(key)];
+	}
+
+	int size() {
+		return lockArray.length;
+	}
+
+}
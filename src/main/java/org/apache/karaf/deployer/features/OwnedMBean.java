@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Platform MBean server registration under a fixed name, owned by one
+ * component instance.
+ * <p>
+ * Register fails when the name is taken, nothing is replaced. Unregister
+ * removes the MBean only while the one under the name is still this
+ * registration, so a component stopped after its successor started
+ * leaves the successor in place.
+ */
+public class OwnedMBean<T> {
+
+	/**
+	 * MXBean wrapper which tracks its own registration.
+	 */
+	final class Bean extends StandardMBean {
+
+		Bean() {
+			super(mbean, face, true);
+		}
+
+		@Override
+		public void postDeregister() {
+			synchronized (OwnedMBean.this) {
+				if (bean == this) {
+					bean = null;
+				}
+			}
+			super.postDeregister();
+		}
+
+	}
+
+	/** Current registration, null when not registered. */
+	private Bean bean;
+
+	private final Class<T> face;
+
+	private final T mbean;
+
+	private final ObjectName name;
+
+	private final MBeanServer server = ManagementFactory
+			.getPlatformMBeanServer();
+
+	OwnedMBean(final T mbean, final Class<T> face, final String name) {
+		this.mbean = mbean;
+		this.face = face;
+		try {
+			this.name = new ObjectName(name);
+		} catch (final Exception e) {
+			throw new IllegalArgumentException("Invalid name: " + name, e);
+		}
+	}
+
+	/**
+	 * This registration is present under the name.
+	 */
+	synchronized boolean isRegistered() {
+		return bean != null;
+	}
+
+	/**
+	 * Register under the name, fail when it is already taken.
+	 */
+	synchronized void register() throws Exception {
+		if (bean != null) {
+			return;
+		}
+		final Bean fresh = new Bean();
+		server.registerMBean(fresh, name);
+		bean = fresh;
+	}
+
+	/**
+	 * Remove own registration, if still present.
+	 */
+	synchronized void unregister() throws Exception {
+		if (bean == null) {
+			return;
+		}
+		try {
+			server.unregisterMBean(name);
+		} catch (final InstanceNotFoundException e) {
+			/** Removed by someone else meanwhile. */
+			bean = null;
+		}
+	}
+
+}
@@ -19,38 +19,155 @@ package org.apache.karaf.deployer.features;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
 
 import org.apache.karaf.features.Feature;
 import org.apache.karaf.features.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Repository/feature install state persistence.
+ * <p>
+ * Counts are loaded once and kept in memory; changes are written back by
+ * {@link #flush()}, once per deployment operation.
+ * <p>
+ * Count changes are appended to a journal as add/remove records, one
+ * synced append per flush. The journal is periodically compacted into a
+ * snapshot state file, which is replayed together with the journal on
+ * load.
+ * <p>
+ * Snapshots go to a temporary file which is synced and then renamed over
+ * the state file, previous state is kept as backup. Each save carries a
+ * generation number and a checksum of the counts, load picks the newest
+ * intact candidate, so a crash at any point leaves a usable state.
  */
 public class PropBean {
 
+	/** Backup file suffix, previous generation. */
+	static final String BACKUP = ".bak";
+
+	/** Default number of journal records which triggers compaction. */
+	static final int COMPACT_RECORDS = 1000;
+
+	/** State checksum property name. */
+	static final String CHECKSUM_KEY = "@checksum";
+
+	/** State generation property name. */
+	static final String GENERATION_KEY = "@generation";
+
+	/** Journal file suffix. */
+	static final String JOURNAL = ".journal";
+
+	/** Temporary file suffix, generation being written. */
+	static final String TEMPORARY = ".tmp";
+
+	/** Checksum text encoding. */
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Checksum of count entries, independent of property order.
+	 */
+	static long checksum(final Properties prop) {
+		final TreeMap<String, String> sorted = new TreeMap<String, String>();
+		for (final String key : prop.stringPropertyNames()) {
+			if (isMetaKey(key)) {
+				continue;
+			}
+			sorted.put(key, prop.getProperty(key));
+		}
+		final CRC32 crc = new CRC32();
+		for (final Map.Entry<String, String> entry : sorted.entrySet()) {
+			final String line = entry.getKey() + "=" + entry.getValue() + "\n";
+			crc.update(line.getBytes(UTF_8));
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Meta data, not a count entry.
+	 */
+	static boolean isMetaKey(final String key) {
+		return key.startsWith("@");
+	}
+
+	/** Journal size which triggers compaction into snapshot. */
+	private volatile int compactRecords = COMPACT_RECORDS;
+
 	final File file;
+
+	/** Serializes file writes, acquired before the bean monitor. */
+	private final Object flushLock = new Object();
+
+	/** Generation of last loaded or saved state. */
+	private long generation;
+
+	final PropJournal journal;
+
+	/** Records in current journal segment. */
+	private int journalSize;
+
+	private boolean loaded;
+
+	private final Logger logger = LoggerFactory.getLogger(PropBean.class);
+
+	/** Records not yet written to journal. */
+	private final List<PropJournal.Record> pending = new ArrayList<PropJournal.Record>();
+
 	final Properties prop;
 
+	/** Next flush must write a full snapshot. */
+	private boolean snapshotDue;
+
 	PropBean(final File file) {
 		this.file = file;
+		this.journal = new PropJournal(new File(file.getPath() + JOURNAL));
+		this.prop = new Properties();
+	}
+
+	/**
+	 * Counts in memory only, from a copy; nothing is loaded or written.
+	 */
+	PropBean(final Properties counts) {
+		this.file = null;
+		this.journal = null;
 		this.prop = new Properties();
+		this.prop.putAll(counts);
+		this.loaded = true;
 	}
 
 	/**
 	 * Decrement total/local counts if repository/feature is present.
 	 */
-	boolean checkDecrement(final Repository repo, final Feature feature)
+	synchronized boolean checkDecrement(final Repository repo,
+			final Feature feature)
 			throws Exception {
+		return checkDecrement(repo.getName(), feature.getId());
+	}
+
+	/**
+	 * Decrement total/local counts if repository/feature is present, by
+	 * identity; also for repositories and features no longer registered.
+	 */
+	synchronized boolean checkDecrement(final String repoId,
+			final String featureId) throws Exception {
 
-		final int total = countValue(null, feature);
-		final int local = countValue(repo, feature);
+		final int total = countValue(null, featureId);
+		final int local = countValue(repoId, featureId);
 
 		if (local == 1) {
-			countValue(null, feature, total - 1);
-			countValue(repo, feature, local - 1);
+			countWrite(null, featureId, total - 1);
+			countWrite(repoId, featureId, local - 1);
+			record(PropJournal.REMOVE, repoId, featureId);
 			return true;
 		} else {
 			return false;
@@ -61,15 +178,26 @@ public class PropBean {
 	/**
 	 * Increment total/local counts if repository/feature is missing.
 	 */
-	boolean checkIncrement(final Repository repo, final Feature feature)
+	synchronized boolean checkIncrement(final Repository repo,
+			final Feature feature)
 			throws Exception {
+		return checkIncrement(repo.getName(), feature.getId());
+	}
+
+	/**
+	 * Increment total/local counts if repository/feature is missing, by
+	 * identity.
+	 */
+	synchronized boolean checkIncrement(final String repoId,
+			final String featureId) throws Exception {
 
-		final int total = countValue(null, feature);
-		final int local = countValue(repo, feature);
+		final int total = countValue(null, featureId);
+		final int local = countValue(repoId, featureId);
 
 		if (local == 0) {
-			countValue(null, feature, total + 1);
-			countValue(repo, feature, local + 1);
+			countWrite(null, featureId, total + 1);
+			countWrite(repoId, featureId, local + 1);
+			record(PropJournal.ADD, repoId, featureId);
 			return true;
 		} else {
 			return false;
@@ -78,76 +206,443 @@ public class PropBean {
 	}
 
 	/**
-	 * Load properties from file.
+	 * Apply replayed journal record to counts being loaded.
 	 */
-	void propLoad() throws Exception {
-		if (!file.exists()) {
+	void countReplay(final Properties target,
+			final PropJournal.Record record) {
+		final int delta = record.isAdd() ? 1 : -1;
+		countStore(target, countKey("[repo]", record.featureId), delta);
+		countStore(target, countKey(record.repoId, record.featureId), delta);
+	}
+
+	/**
+	 * Adjust count by delta, drop when zero.
+	 */
+	private void countStore(final Properties target, final String key,
+			final int delta) {
+		final int count = Integer.parseInt(target.getProperty(key, "0"))
+				+ delta;
+		if (count <= 0) {
+			target.remove(key);
+		} else {
+			target.setProperty(key, Integer.toString(count));
+		}
+	}
+
+	/**
+	 * Copy of current counts, with totals.
+	 */
+	synchronized Properties counts() throws Exception {
+		propLoad();
+		final Properties copy = new Properties();
+		for (final String key : prop.stringPropertyNames()) {
+			if (!isMetaKey(key)) {
+				copy.setProperty(key, prop.getProperty(key));
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Write pending changes into file, if any.
+	 * <p>
+	 * Appends pending records to the journal; compacts journal into a new
+	 * snapshot when it grows over the limit.
+	 */
+	void flush() throws Exception {
+		if (file == null) {
+			synchronized (this) {
+				pending.clear();
+				snapshotDue = false;
+			}
 			return;
 		}
-		final InputStream input = new FileInputStream(file);
+		synchronized (flushLock) {
+
+			final long nextGeneration;
+			final List<PropJournal.Record> recordList;
+			final Properties snapshot;
+			synchronized (this) {
+				if (!isDirty()) {
+					return;
+				}
+				nextGeneration = generation + 1;
+				recordList = new ArrayList<PropJournal.Record>(pending.size());
+				for (final PropJournal.Record record : pending) {
+					recordList.add(record.with(nextGeneration));
+				}
+				if (snapshotDue
+						|| journalSize + recordList.size() > compactRecords) {
+					snapshot = new Properties();
+					snapshot.putAll(prop);
+				} else {
+					snapshot = null;
+				}
+				pending.clear();
+				snapshotDue = false;
+			}
+
+			try {
+				if (snapshot == null) {
+					journal.append(recordList);
+					synchronized (this) {
+						journalSize += recordList.size();
+						generation = nextGeneration;
+					}
+				} else {
+					/** Records up to this generation are in the snapshot. */
+					propSave(snapshot, nextGeneration);
+					journal.archive();
+					/** History only, replay skips them. */
+					if (!recordList.isEmpty()) {
+						journal.append(recordList);
+					}
+					synchronized (this) {
+						journalSize = recordList.size();
+					}
+				}
+			} catch (final Exception e) {
+				/** Journal state unknown, rewrite everything next time. */
+				synchronized (this) {
+					snapshotDue = true;
+				}
+				throw e;
+			}
+
+		}
+	}
+
+	/**
+	 * Journal size which triggers compaction into snapshot.
+	 */
+	int getCompactRecords() {
+		return compactRecords;
+	}
+
+	/**
+	 * Journal records of current and previous segment, oldest first.
+	 */
+	List<PropJournal.Record> history() throws Exception {
+		if (journal == null) {
+			return new ArrayList<PropJournal.Record>();
+		}
+		return journal.history();
+	}
+
+	/**
+	 * Repository holds any local count.
+	 */
+	synchronized boolean hasRepo(final String repoId) throws Exception {
+		propLoad();
+		final String prefix = countKey(repoId, "");
+		for (final String key : prop.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Changes not yet written to file.
+	 */
+	synchronized boolean isDirty() {
+		return snapshotDue || !pending.isEmpty();
+	}
+
+	/**
+	 * Feature ids with a local count, by repository name.
+	 */
+	synchronized Map<String, List<String>> repoFeatureMap() throws Exception {
+		propLoad();
+		final Map<String, List<String>> repoMap = new TreeMap<String, List<String>>();
+		for (final String key : new TreeSet<String>(prop.stringPropertyNames())) {
+			final int index = key.indexOf('/');
+			if (index < 0) {
+				continue;
+			}
+			final String repoId = key.substring(0, index);
+			if ("[repo]".equals(repoId)) {
+				continue;
+			}
+			List<String> featureList = repoMap.get(repoId);
+			if (featureList == null) {
+				featureList = new ArrayList<String>();
+				repoMap.put(repoId, featureList);
+			}
+			featureList.add(key.substring(index + 1));
+		}
+		return repoMap;
+	}
+
+	/**
+	 * Queue journal record for next flush.
+	 */
+	private void record(final String operation, final String repoId,
+			final String featureId) {
+		pending.add(new PropJournal.Record(0, System.currentTimeMillis(),
+				operation, repoId, featureId));
+	}
+
+	void setCompactRecords(final int compactRecords) {
+		this.compactRecords = compactRecords;
+	}
+
+	/**
+	 * Number of repository/feature reference counts, without totals.
+	 */
+	synchronized int size() {
+		int size = 0;
+		for (final String key : prop.stringPropertyNames()) {
+			if (!isMetaKey(key) && !key.startsWith("[repo]/")) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Backup file, previous generation.
+	 */
+	File fileBackup() {
+		return new File(file.getPath() + BACKUP);
+	}
+
+	/**
+	 * Temporary file, generation being written.
+	 */
+	File fileTemporary() {
+		return new File(file.getPath() + TEMPORARY);
+	}
+
+	/**
+	 * Generation of last loaded or saved state.
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Load properties from file, once.
+	 * <p>
+	 * Chooses the newest intact state among state, temporary and backup
+	 * files; a legacy file without generation and checksum is accepted as
+	 * generation zero.
+	 * <p>
+	 * State is assembled aside and published only when complete; after a
+	 * failure nothing is loaded, the next use tries again and flush has
+	 * nothing to write over the good files.
+	 */
+	synchronized void propLoad() throws Exception {
+		if (loaded) {
+			return;
+		}
+		final Properties loadProp = new Properties();
+		long loadGeneration = 0;
+		Properties best = null;
+		long bestGeneration = -1;
+		File bestFile = null;
+		for (final File candidate : new File[] { file, fileTemporary(),
+				fileBackup() }) {
+			final Properties candidateProp = propRead(candidate);
+			if (candidateProp == null) {
+				continue;
+			}
+			final long candidateGeneration = Long.parseLong(candidateProp
+					.getProperty(GENERATION_KEY, "0"));
+			if (candidateGeneration > bestGeneration) {
+				best = candidateProp;
+				bestGeneration = candidateGeneration;
+				bestFile = candidate;
+			}
+		}
+		if (best != null) {
+			if (!file.equals(bestFile)) {
+				logger.warn("Deployer state recovered from {} generation {}",
+						bestFile, bestGeneration);
+			}
+			best.remove(GENERATION_KEY);
+			best.remove(CHECKSUM_KEY);
+			loadProp.putAll(best);
+			loadGeneration = Math.max(bestGeneration, 0);
+		}
+		loadGeneration = propReplay(loadProp, loadGeneration);
+		prop.clear();
+		prop.putAll(loadProp);
+		generation = loadGeneration;
+		loaded = true;
+		/** Start next segment clean, also drops a torn tail. */
+		if (journal.file.length() > 0) {
+			snapshotDue = true;
+		}
+	}
+
+	/**
+	 * Replay journal records newer than loaded snapshot, return generation
+	 * of the last one.
+	 * <p>
+	 * Archived segment is replayed before the current one: when the state
+	 * was recovered from the backup snapshot, the changes between backup
+	 * and current snapshot are only there.
+	 */
+	private long propReplay(final Properties target,
+			final long snapshotGeneration) throws Exception {
+		long replayGeneration = snapshotGeneration;
+		int replayCount = 0;
+		for (final PropJournal.Record record : journal.history()) {
+			if (record.generation <= snapshotGeneration) {
+				/** Already in snapshot. */
+				continue;
+			}
+			countReplay(target, record);
+			replayGeneration = Math.max(replayGeneration, record.generation);
+			replayCount++;
+		}
+		if (replayCount > 0) {
+			logger.info("Deployer state journal replayed: {} records",
+					replayCount);
+		}
+		return replayGeneration;
+	}
+
+	/**
+	 * Read state candidate, null when missing or damaged.
+	 */
+	Properties propRead(final File candidate) {
+		if (!candidate.isFile()) {
+			return null;
+		}
+		final Properties candidateProp = new Properties();
 		try {
-			prop.load(input);
-		} finally {
-			input.close();
+			final InputStream input = new FileInputStream(candidate);
+			try {
+				candidateProp.load(input);
+			} finally {
+				input.close();
+			}
+			final String checksum = candidateProp.getProperty(CHECKSUM_KEY);
+			if (checksum == null) {
+				if (candidateProp.getProperty(GENERATION_KEY) == null) {
+					/** Legacy state file. */
+					return candidateProp;
+				}
+				logger.error("Deployer state checksum missing: {}", candidate);
+				return null;
+			}
+			if (Long.parseLong(checksum) != checksum(candidateProp)) {
+				logger.error("Deployer state checksum mismatch: {}",
+						candidate);
+				return null;
+			}
+			return candidateProp;
+		} catch (final Exception e) {
+			logger.error("Deployer state is not readable: " + candidate, e);
+			return null;
 		}
 	}
 
 	/**
-	 * Save properties into file.
+	 * Save properties into file, atomically.
 	 */
-	void propSave() throws Exception {
-		final OutputStream output = new FileOutputStream(file);
+	void propSave(final Properties snapshot, final long nextGeneration)
+			throws Exception {
+
+		snapshot.setProperty(GENERATION_KEY, Long.toString(nextGeneration));
+		snapshot.setProperty(CHECKSUM_KEY, Long.toString(checksum(snapshot)));
+
+		final File temporary = fileTemporary();
+		final FileOutputStream output = new FileOutputStream(temporary);
 		try {
-			prop.store(output, null);
+			snapshot.store(output, null);
+			output.flush();
+			output.getFD().sync();
 		} finally {
 			output.close();
 		}
+
+		/** Keep previous generation until the new one is in place. */
+		final File backup = fileBackup();
+		if (file.exists()) {
+			if (backup.exists() && !backup.delete()) {
+				throw new IOException("Can not delete: " + backup);
+			}
+			if (!file.renameTo(backup)) {
+				throw new IOException("Can not rename: " + file);
+			}
+		}
+		if (!temporary.renameTo(file)) {
+			throw new IOException("Can not rename: " + temporary);
+		}
+
+		synchronized (this) {
+			generation = nextGeneration;
+		}
+
 	}
 
 	/**
 	 * Repository/Feature count property name.
 	 */
 	String countKey(final Repository repo, final Feature feature) {
-		final String repoId;
-		if (repo == null) {
-			repoId = "[repo]";
-		} else {
-			repoId = repo.getName();
-		}
-		final String featureId;
-		if (feature == null) {
-			featureId = "[feature]";
-		} else {
-			featureId = feature.getId();
-		}
-		return repoId + "/" + featureId;
+		return countKey(repo == null ? null : repo.getName(),
+				feature == null ? null : feature.getId());
+	}
+
+	/**
+	 * Repository/Feature count property name; null repository stands for
+	 * the total count.
+	 */
+	String countKey(final String repoId, final String featureId) {
+		return (repoId == null ? "[repo]" : repoId) + "/"
+				+ (featureId == null ? "[feature]" : featureId);
 	}
 
 	/**
 	 * Load repository/feature count.
 	 */
-	int countValue(final Repository repo, final Feature feature)
+	synchronized int countValue(final Repository repo, final Feature feature)
+			throws Exception {
+		return countValue(repo == null ? null : repo.getName(),
+				feature.getId());
+	}
+
+	/**
+	 * Load repository/feature count, by identity; null repository for
+	 * the total.
+	 */
+	synchronized int countValue(final String repoId, final String featureId)
 			throws Exception {
 		propLoad();
-		final String key = countKey(repo, feature);
-		final String value = prop.getProperty(key, "0");
+		final String value = prop.getProperty(countKey(repoId, featureId),
+				"0");
 		return Integer.parseInt(value);
 	}
 
 	/**
 	 * Save repository/feature count.
 	 */
-	int countValue(final Repository repo, final Feature feature, final int count)
-			throws Exception {
+	synchronized int countValue(final Repository repo, final Feature feature,
+			final int count) throws Exception {
+		final int value = countWrite(repo == null ? null : repo.getName(),
+				feature.getId(), count);
+		/** Change without journal record, needs a full snapshot. */
+		snapshotDue = true;
+		return value;
+	}
+
+	/**
+	 * Store repository/feature count in memory, return previous count.
+	 */
+	private int countWrite(final String repoId, final String featureId,
+			final int count) throws Exception {
 		propLoad();
-		final String key = countKey(repo, feature);
+		final String key = countKey(repoId, featureId);
 		final String value = prop.getProperty(key, "0");
 		if (count == 0) {
 			prop.remove(key);
 		} else {
 			prop.setProperty(key, Integer.toString(count));
 		}
-		propSave();
 		return Integer.parseInt(value);
 	}
 
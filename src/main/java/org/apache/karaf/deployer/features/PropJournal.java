@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of repository/feature count changes.
+ * <p>
+ * One line per record:
+ * {@code generation time operation repository feature checksum}, tab
+ * separated. Reading stops at the first damaged line, which can only be a
+ * torn tail left by a crash during append.
+ */
+public class PropJournal {
+
+	/**
+	 * Single count change: repository added or removed a feature.
+	 */
+	static final class Record {
+
+		final String featureId;
+		final long generation;
+		final String operation;
+		final String repoId;
+		final long time;
+
+		Record(final long generation, final long time,
+				final String operation, final String repoId,
+				final String featureId) {
+			this.generation = generation;
+			this.time = time;
+			this.operation = operation;
+			this.repoId = repoId;
+			this.featureId = featureId;
+		}
+
+		boolean isAdd() {
+			return ADD.equals(operation);
+		}
+
+		Record with(final long generation) {
+			return new Record(generation, time, operation, repoId, featureId);
+		}
+
+		@Override
+		public String toString() {
+			return generation + SEPARATOR + time + SEPARATOR + operation
+					+ SEPARATOR + repoId + SEPARATOR + featureId;
+		}
+
+	}
+
+	/** Feature added by repository. */
+	static final String ADD = "+";
+
+	/** Previous journal segment suffix, kept after compaction. */
+	static final String ARCHIVE = ".bak";
+
+	/** Feature removed by repository. */
+	static final String REMOVE = "-";
+
+	/** Record field separator. */
+	static final String SEPARATOR = "\t";
+
+	/**
+	 * Record line checksum.
+	 */
+	static long checksum(final String text) {
+		final CRC32 crc = new CRC32();
+		crc.update(text.getBytes(PropBean.UTF_8));
+		return crc.getValue();
+	}
+
+	/**
+	 * Record as journal line, with checksum.
+	 */
+	static String format(final Record record) {
+		final String text = record.toString();
+		return text + SEPARATOR + checksum(text) + "\n";
+	}
+
+	/**
+	 * Journal line as record, null when damaged.
+	 */
+	static Record parse(final String line) {
+		final int index = line.lastIndexOf(SEPARATOR);
+		if (index < 0) {
+			return null;
+		}
+		final String text = line.substring(0, index);
+		try {
+			if (Long.parseLong(line.substring(index + 1)) != checksum(text)) {
+				return null;
+			}
+			final String[] part = text.split(SEPARATOR, -1);
+			if (part.length != 5) {
+				return null;
+			}
+			return new Record(Long.parseLong(part[0]),
+					Long.parseLong(part[1]), part[2], part[3], part[4]);
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	final File file;
+
+	PropJournal(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Append records as one synced write.
+	 */
+	void append(final List<Record> recordList) throws IOException {
+		final StringBuilder text = new StringBuilder(recordList.size() * 64);
+		for (final Record record : recordList) {
+			text.append(format(record));
+		}
+		final FileOutputStream output = new FileOutputStream(file, true);
+		try {
+			output.write(text.toString().getBytes(PropBean.UTF_8));
+			output.flush();
+			output.getFD().sync();
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Start a new segment, keep current one as archive.
+	 */
+	void archive() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		final File archive = new File(file.getPath() + ARCHIVE);
+		if (archive.exists() && !archive.delete()) {
+			throw new IOException("Can not delete: " + archive);
+		}
+		if (!file.renameTo(archive)) {
+			throw new IOException("Can not rename: " + file);
+		}
+	}
+
+	/**
+	 * Records of previous and current segment, in append order.
+	 */
+	List<Record> history() throws IOException {
+		final List<Record> recordList = read(new File(file.getPath()
+				+ ARCHIVE));
+		recordList.addAll(read());
+		return recordList;
+	}
+
+	/**
+	 * Read intact records of current segment, in append order.
+	 */
+	List<Record> read() throws IOException {
+		return read(file);
+	}
+
+	/**
+	 * Read intact records of a segment, in append order.
+	 */
+	List<Record> read(final File segment) throws IOException {
+		final List<Record> recordList = new ArrayList<Record>();
+		if (!segment.isFile()) {
+			return recordList;
+		}
+		final BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(segment),
+						PropBean.UTF_8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final Record record = parse(line);
+				if (record == null) {
+					/** Torn tail, nothing valid can follow. */
+					break;
+				}
+				recordList.add(record);
+			}
+		} finally {
+			reader.close();
+		}
+		return recordList;
+	}
+
+}
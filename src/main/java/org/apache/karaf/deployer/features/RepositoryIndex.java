@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.Repository;
+
+/**
+ * Registered repository index based on repository name.
+ * <p>
+ * Kept in sync with repository add/remove operations and events, falls
+ * back to a full feature service rescan only on a miss.
+ */
+public class RepositoryIndex {
+
+	private final ConcurrentMap<String, Repository> repoMap = new ConcurrentHashMap<String, Repository>();
+
+	/** Index generation, advanced on every change; guarded by repoMap. */
+	private long version;
+
+	/**
+	 * Find repository by name, rescan on a miss.
+	 */
+	Repository find(final FeaturesService service, final String name) {
+		final Repository repo = repoMap.get(name);
+		if (repo != null) {
+			return repo;
+		}
+		return rescan(service, name);
+	}
+
+	/**
+	 * Record added repository.
+	 */
+	void put(final Repository repo) {
+		final String name = repo.getName();
+		if (name == null) {
+			return;
+		}
+		synchronized (repoMap) {
+			version++;
+			repoMap.put(name, repo);
+		}
+	}
+
+	/**
+	 * Forget removed repository.
+	 */
+	void remove(final String name) {
+		if (name == null) {
+			return;
+		}
+		synchronized (repoMap) {
+			version++;
+			repoMap.remove(name);
+		}
+	}
+
+	/**
+	 * Replace index with feature service listing, return named repository.
+	 */
+	Repository rescan(final FeaturesService service, final String name) {
+
+		final long scanVersion;
+		synchronized (repoMap) {
+			scanVersion = version;
+		}
+
+		/** List outside of the lock, feature service can be slow. */
+		final Repository[] repoArray = service.listRepositories();
+		final Map<String, Repository> scanMap = new HashMap<String, Repository>(
+				repoArray.length * 2);
+		Repository found = null;
+		for (final Repository repo : repoArray) {
+			final String repoName = repo.getName();
+			if (repoName == null) {
+				continue;
+			}
+			if (found == null && repoName.equals(name)) {
+				found = repo;
+			}
+			if (!scanMap.containsKey(repoName)) {
+				scanMap.put(repoName, repo);
+			}
+		}
+
+		synchronized (repoMap) {
+			/** Do not publish listing which raced with a change. */
+			if (version == scanVersion) {
+				version++;
+				repoMap.clear();
+				repoMap.putAll(scanMap);
+			}
+		}
+
+		return found;
+
+	}
+
+	/**
+	 * Drop all entries, next lookup rescans.
+	 */
+	void reset() {
+		synchronized (repoMap) {
+			version++;
+			repoMap.clear();
+		}
+	}
+
+	int size() {
+		return repoMap.size();
+	}
+
+}
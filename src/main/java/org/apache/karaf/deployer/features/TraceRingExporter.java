@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the most recent finished traces in memory, for JMX queries.
+ */
+public class TraceRingExporter implements TraceExporter {
+
+	/** Default number of traces kept. */
+	static final int CAPACITY = 100;
+
+	private final int capacity;
+
+	private final LinkedList<DeploymentTrace> traceList = new LinkedList<DeploymentTrace>();
+
+	TraceRingExporter() {
+		this(CAPACITY);
+	}
+
+	TraceRingExporter(final int capacity) {
+		this.capacity = capacity;
+	}
+
+	synchronized void clear() {
+		traceList.clear();
+	}
+
+	@Override
+	public synchronized void export(final DeploymentTrace trace) {
+		traceList.addLast(trace);
+		while (traceList.size() > capacity) {
+			traceList.removeFirst();
+		}
+	}
+
+	/**
+	 * Kept traces as text, oldest first.
+	 */
+	List<String> lines() {
+		final List<DeploymentTrace> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<DeploymentTrace>(traceList);
+		}
+		final List<String> lineList = new ArrayList<String>();
+		for (final DeploymentTrace trace : snapshot) {
+			lineList.addAll(trace.lines());
+		}
+		return lineList;
+	}
+
+	synchronized int size() {
+		return traceList.size();
+	}
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.karaf.features.Feature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Features due for uninstall, with dependency edges between them.
+ * <p>
+ * Planned while reference counts are released, executed afterwards: a
+ * feature is uninstalled only after all of its planned dependents are,
+ * features without a dependency relationship are uninstalled in parallel.
+ * <p>
+ * Counts of planned features are already released, so none may be left
+ * behind: features a failure or a dependency cycle kept out of the
+ * parallel pass are uninstalled afterwards one by one on the caller,
+ * dependents first, failed ones retried.
+ */
+public class UninstallPlan {
+
+	/**
+	 * Single feature uninstall.
+	 */
+	interface Action {
+
+		void uninstall(Feature feature) throws Exception;
+
+	}
+
+	/**
+	 * Planned feature.
+	 */
+	static final class Node {
+
+		final List<Node> dependencyList = new ArrayList<Node>();
+
+		/** Dependents not yet uninstalled; owned by executing thread. */
+		int dependentCount;
+
+		/** Uninstall failure, published through completion service. */
+		Exception failure;
+
+		final Feature feature;
+
+		/** Uninstalled, published through completion service. */
+		boolean isDone;
+
+		Node(final Feature feature) {
+			this.feature = feature;
+		}
+
+	}
+
+	/** Runs uninstall actions on the planning thread. */
+	static final Executor INLINE = new Executor() {
+		@Override
+		public void execute(final Runnable command) {
+			command.run();
+		}
+	};
+
+	private final Logger logger = LoggerFactory.getLogger(UninstallPlan.class);
+
+	private final Map<String, Node> nodeMap = new LinkedHashMap<String, Node>();
+
+	/**
+	 * Bounded uninstall pool with daemon threads.
+	 */
+	static ExecutorService executor(final int threads) {
+		final ThreadFactory factory = new ThreadFactory() {
+			final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "feature-uninstall-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+				threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), factory);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Plan feature uninstall.
+	 */
+	void add(final Feature feature) {
+		if (!nodeMap.containsKey(feature.getId())) {
+			nodeMap.put(feature.getId(), new Node(feature));
+		}
+	}
+
+	boolean contains(final Feature feature) {
+		return nodeMap.containsKey(feature.getId());
+	}
+
+	/**
+	 * Run uninstall actions, dependents before dependencies; then run the
+	 * ones left sequentially, rethrow first failure of that pass.
+	 */
+	void execute(final Executor executor, final Action action)
+			throws Exception {
+
+		final CompletionService<Node> service = new ExecutorCompletionService<Node>(
+				executor);
+
+		int running = 0;
+		for (final Node node : nodeMap.values()) {
+			if (node.dependentCount == 0) {
+				submit(service, node, action);
+				running++;
+			}
+		}
+
+		while (running > 0) {
+			final Node node = service.take().get();
+			running--;
+			if (node.failure != null) {
+				logger.warn("Feature uninstall failure, retry sequentially: "
+						+ node.feature.getId(), node.failure);
+				continue;
+			}
+			for (final Node dependency : node.dependencyList) {
+				if (--dependency.dependentCount == 0) {
+					submit(service, dependency, action);
+					running++;
+				}
+			}
+		}
+
+		final List<Node> leftList = new ArrayList<Node>();
+		final Set<Node> visitSet = new HashSet<Node>();
+		for (final Node node : nodeMap.values()) {
+			resolveOrder(node, visitSet, leftList);
+		}
+		if (leftList.isEmpty()) {
+			return;
+		}
+		Collections.reverse(leftList);
+
+		logger.warn("Features left by parallel pass, uninstall sequentially: "
+				+ "{} of {}", leftList.size(), nodeMap.size());
+
+		Exception failure = null;
+		for (final Node node : leftList) {
+			try {
+				action.uninstall(node.feature);
+				node.isDone = true;
+			} catch (final Exception e) {
+				logger.error("Feature uninstall failure: "
+						+ node.feature.getId(), e);
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+
+	}
+
+	boolean isEmpty() {
+		return nodeMap.isEmpty();
+	}
+
+	/**
+	 * Record that dependent must be uninstalled before dependency; both must
+	 * be planned.
+	 */
+	void link(final Feature dependent, final Feature dependency) {
+		final Node source = nodeMap.get(dependent.getId());
+		final Node target = nodeMap.get(dependency.getId());
+		if (source == null || target == null || source == target
+				|| source.dependencyList.contains(target)) {
+			return;
+		}
+		source.dependencyList.add(target);
+		target.dependentCount++;
+	}
+
+	/**
+	 * Collect nodes not uninstalled in resolve order, dependencies first;
+	 * a cycle is broken at the node seen again.
+	 */
+	void resolveOrder(final Node node, final Set<Node> visitSet,
+			final List<Node> orderList) {
+		if (node.isDone || !visitSet.add(node)) {
+			return;
+		}
+		for (final Node dependency : node.dependencyList) {
+			resolveOrder(dependency, visitSet, orderList);
+		}
+		orderList.add(node);
+	}
+
+	int size() {
+		return nodeMap.size();
+	}
+
+	void submit(final CompletionService<Node> service, final Node node,
+			final Action action) {
+		service.submit(new Callable<Node>() {
+			@Override
+			public Node call() {
+				try {
+					action.uninstall(node.feature);
+					node.isDone = true;
+				} catch (final Exception e) {
+					node.failure = e;
+				}
+				return node;
+			}
+		});
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wrapper bundle verdict cache used by bundleChanged.
+ * <p>
+ * Entries are keyed by bundle id and remain valid while bundle modification
+ * time is unchanged. Non-wrapper bundles are cached as well, so that they
+ * are rejected with a single map lookup.
+ */
+public class WrapperCache {
+
+	/**
+	 * Bundle state with repository descriptor, null for non-wrapper.
+	 */
+	static final class Entry {
+
+		final long modified;
+		final URL repoUrl;
+
+		Entry(final long modified, final URL repoUrl) {
+			this.modified = modified;
+			this.repoUrl = repoUrl;
+		}
+
+	}
+
+	private final ConcurrentMap<Long, Entry> entryMap = new ConcurrentHashMap<Long, Entry>();
+
+	void clear() {
+		entryMap.clear();
+	}
+
+	/**
+	 * Forget bundle verdict, return last known one or null.
+	 */
+	Entry evict(final long bundleId) {
+		return entryMap.remove(bundleId);
+	}
+
+	int size() {
+		return entryMap.size();
+	}
+
+	/**
+	 * Cached verdict for bundle in given state, or null when unknown.
+	 */
+	Entry verdict(final long bundleId, final long modified) {
+		final Entry entry = entryMap.get(bundleId);
+		if (entry == null || entry.modified != modified) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Remember verdict for bundle in given state.
+	 */
+	void verdict(final long bundleId, final long modified, final URL repoUrl) {
+		entryMap.put(bundleId, new Entry(modified, repoUrl));
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+
+public class DeployCoalescerTest {
+
+	/**
+	 * Target which records net operations as "repoId type url".
+	 */
+	static class Recorder implements DeployCoalescer.Target {
+
+		final CountDownLatch latch = new CountDownLatch(1);
+
+		final List<String> deployList = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void deploy(final BundleEventType type, final Bundle bundle,
+				final String repoId, final URL repoUrl, final long timeEvent) {
+			deployList.add(repoId + " " + type + " " + repoUrl);
+			latch.countDown();
+		}
+
+	}
+
+	/** Quiet period no test waits for. */
+	static final long NEVER = TimeUnit.MINUTES.toMillis(10);
+
+	static URL url(final String name) throws Exception {
+		return new URL("file:/" + name);
+	}
+
+	@Test
+	public void fireIgnoresExtendedBurst() throws Exception {
+		final Recorder recorder = new Recorder();
+		final DeployCoalescer coalescer = new DeployCoalescer(NEVER, recorder);
+		try {
+			coalescer.submit(BundleEventType.INSTALLED, null, "r1", url("1"), 0);
+			coalescer.submit(BundleEventType.UPDATED, null, "r1", url("2"), 0);
+			coalescer.fire("r1", 1);
+			assertTrue(recorder.deployList.isEmpty());
+			assertEquals(2, coalescer.pending());
+			coalescer.fire("r1", 2);
+			assertEquals(Collections.singletonList("r1 INSTALLED file:/2"),
+					recorder.deployList);
+			assertEquals(0, coalescer.pending());
+			coalescer.fire("r1", 2);
+			assertEquals(1, recorder.deployList.size());
+		} finally {
+			coalescer.shutdown();
+		}
+	}
+
+	@Test
+	public void flushHandsOverNetOperations() throws Exception {
+		final Recorder recorder = new Recorder();
+		final DeployCoalescer coalescer = new DeployCoalescer(NEVER, recorder);
+		try {
+			coalescer.submit(BundleEventType.INSTALLED, null, "r1", url("1"), 0);
+			coalescer.submit(BundleEventType.UNINSTALLED, null, "r1", url("1"),
+					0);
+			coalescer.submit(BundleEventType.UPDATED, null, "r2", url("2"), 0);
+			coalescer.submit(BundleEventType.UNINSTALLED, null, "r2", url("2"),
+					0);
+			assertEquals(4, coalescer.pending());
+			coalescer.flush();
+			assertEquals(0, coalescer.pending());
+			assertEquals(Collections.singletonList("r2 UNINSTALLED file:/2"),
+					recorder.deployList);
+		} finally {
+			coalescer.shutdown();
+		}
+	}
+
+	@Test
+	public void netOfFirstAndLast() throws Exception {
+		final BundleEventType installed = BundleEventType.INSTALLED;
+		final BundleEventType updated = BundleEventType.UPDATED;
+		final BundleEventType uninstalled = BundleEventType.UNINSTALLED;
+		assertEquals(installed, DeployCoalescer.net(installed, installed));
+		assertEquals(installed, DeployCoalescer.net(installed, updated));
+		assertNull(DeployCoalescer.net(installed, uninstalled));
+		assertEquals(updated, DeployCoalescer.net(updated, installed));
+		assertEquals(updated, DeployCoalescer.net(updated, updated));
+		assertEquals(uninstalled, DeployCoalescer.net(updated, uninstalled));
+		assertEquals(updated, DeployCoalescer.net(uninstalled, installed));
+		assertEquals(updated, DeployCoalescer.net(uninstalled, updated));
+		assertEquals(uninstalled,
+				DeployCoalescer.net(uninstalled, uninstalled));
+	}
+
+	@Test
+	public void quietPeriodHandsOverOnce() throws Exception {
+		final Recorder recorder = new Recorder();
+		final DeployCoalescer coalescer = new DeployCoalescer(50, recorder);
+		try {
+			coalescer.submit(BundleEventType.UPDATED, null, "r1", url("1"), 0);
+			coalescer.submit(BundleEventType.UPDATED, null, "r1", url("2"), 0);
+			coalescer.submit(BundleEventType.UPDATED, null, "r1", url("3"), 0);
+			assertTrue(recorder.latch.await(10, TimeUnit.SECONDS));
+			Thread.sleep(200);
+			assertEquals(Collections.singletonList("r1 UPDATED file:/3"),
+					recorder.deployList);
+		} finally {
+			coalescer.shutdown();
+		}
+	}
+
+	@Test
+	public void shutdownHandsOverThenDrops() throws Exception {
+		final Recorder recorder = new Recorder();
+		final DeployCoalescer coalescer = new DeployCoalescer(NEVER, recorder);
+		coalescer.submit(BundleEventType.INSTALLED, null, "r1", url("1"), 0);
+		coalescer.shutdown();
+		assertEquals(Collections.singletonList("r1 INSTALLED file:/1"),
+				recorder.deployList);
+		coalescer.submit(BundleEventType.UPDATED, null, "r1", url("1"), 0);
+		assertEquals(0, coalescer.pending());
+		assertEquals(1, recorder.deployList.size());
+	}
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FeatureDeploymentListenerTest {
+
+	/** Repositories deployed at the same time. */
+	static final int REPOS = 16;
+
+	private File folder;
+
+	private FeatureDeploymentListener listener;
+
+	private StubFeaturesService stub;
+
+	@After
+	public void cleanup() throws Exception {
+		listener.destroy();
+		StubBundleContext.delete(folder);
+	}
+
+	/**
+	 * Deploy or undeploy repositories from parallel threads.
+	 */
+	private void concurrent(final BundleEventType type,
+			final List<String> repoList) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			final Future<?>[] futureArray = new Future<?>[repoList.size()];
+			for (int index = 0; index < futureArray.length; index++) {
+				final String repoId = repoList.get(index);
+				futureArray[index] = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						listener.deploy(type, null, repoId, url(repoId),
+								System.nanoTime());
+						return null;
+					}
+				});
+			}
+			start.countDown();
+			for (final Future<?> future : futureArray) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Write repository descriptor, features element body given.
+	 */
+	private File descriptor(final String fileName, final String repoId,
+			final String body) throws IOException {
+		final File file = new File(folder, fileName + "."
+				+ FeatureDeploymentListener.EXTENSION);
+		final Writer writer = new OutputStreamWriter(
+				new FileOutputStream(file), PropBean.UTF_8);
+		try {
+			writer.write("<features name=\"" + repoId
+					+ "\" xmlns=\"http://karaf.apache.org/xmlns/features/v1.2.0\">");
+			writer.write(body);
+			writer.write("</features>");
+		} finally {
+			writer.close();
+		}
+		return file;
+	}
+
+	@Test
+	public void deployConcurrentSharesDependencies() throws Exception {
+
+		final Set<String> expectSet = new HashSet<String>(Arrays.asList(
+				"lib-a/1", "lib-b/1"));
+		final String[] repoArray = new String[REPOS];
+		for (int index = 0; index < REPOS; index++) {
+			final String repoId = "repo-" + index;
+			repoArray[index] = repoId;
+			descriptor(repoId, repoId, "<feature name=\"own-" + index
+					+ "\" version=\"1\" install=\"auto\">"
+					+ "<feature version=\"1\">lib-a</feature>"
+					+ "<bundle>mvn:org.example/own-" + index
+					+ "/1</bundle></feature>");
+			expectSet.add("own-" + index + "/1");
+		}
+		final List<String> repoList = Arrays.asList(repoArray);
+
+		concurrent(BundleEventType.INSTALLED, repoList);
+
+		final PropBean propBean = listener.propBean();
+		assertEquals(expectSet, stub.installed());
+		assertEquals(REPOS, propBean.countValue(null, "lib-a/1"));
+		assertEquals(REPOS, propBean.countValue(null, "lib-b/1"));
+		for (int index = 0; index < REPOS; index++) {
+			final String repoId = repoArray[index];
+			assertEquals(1, propBean.countValue(repoId, "lib-a/1"));
+			assertEquals(1, propBean.countValue(repoId, "lib-b/1"));
+			assertEquals(1, propBean.countValue(repoId, "own-" + index + "/1"));
+			assertEquals(1, propBean.countValue(null, "own-" + index + "/1"));
+		}
+		assertEquals(3 * REPOS, propBean.size());
+		assertEquals(expectSet.size(), stub.getInstallCount());
+
+		concurrent(BundleEventType.UNINSTALLED, repoList.subList(0, REPOS / 2));
+
+		assertEquals(REPOS - REPOS / 2, propBean.countValue(null, "lib-a/1"));
+		assertTrue(stub.installed().contains("lib-a/1"));
+		assertTrue(stub.installed().contains("lib-b/1"));
+
+		concurrent(BundleEventType.UNINSTALLED,
+				repoList.subList(REPOS / 2, REPOS));
+
+		assertEquals(0, propBean.size());
+		assertEquals(0, propBean.countValue(null, "lib-a/1"));
+		assertTrue(stub.installed().isEmpty());
+		assertEquals(expectSet.size(), stub.getUninstallCount());
+
+	}
+
+	@Test
+	public void planLeavesStateUnchanged() throws Exception {
+
+		final File past = descriptor("r1", "r1",
+				"<feature name=\"a\" version=\"1\" install=\"auto\">"
+						+ "<feature version=\"1\">lib-a</feature></feature>");
+		final File next = descriptor("r1-next", "r1",
+				"<feature name=\"c\" version=\"1\" install=\"auto\"/>");
+		listener.deploy(BundleEventType.INSTALLED, null, "r1", past.toURI()
+				.toURL(), System.nanoTime());
+		final Map<Object, Object> counts = listener.propBean().counts();
+		final Set<String> installed = stub.installed();
+
+		final DeploymentPlanner planner = new DeploymentPlanner(listener);
+		final DeploymentPlan update = planner.planCreate(next.toURI()
+				.toURL());
+		assertEquals("update", update.getOperation());
+		assertEquals(1, update.getInstallCount());
+		assertEquals(3, update.getUninstallCount());
+		final DeploymentPlan delete = planner.planDelete("r1");
+		assertEquals(3, delete.getUninstallCount());
+
+		assertEquals(counts, listener.propBean().counts());
+		assertEquals(installed, stub.installed());
+
+	}
+
+	@Before
+	public void setup() throws Exception {
+		folder = StubBundleContext.folder();
+		stub = new StubFeaturesService();
+		final File lib = descriptor("lib", "lib",
+				"<feature name=\"lib-a\" version=\"1\">"
+						+ "<feature version=\"1\">lib-b</feature>"
+						+ "<bundle>mvn:org.example/lib-a/1</bundle></feature>"
+						+ "<feature name=\"lib-b\" version=\"1\">"
+						+ "<bundle>mvn:org.example/lib-b/1</bundle></feature>"
+						+ "<feature name=\"lib-c\" version=\"1\"/>");
+		stub.service().addRepository(lib.toURI());
+		listener = new FeatureDeploymentListener();
+		listener.setBundleContext(StubBundleContext.context(folder));
+		listener.setFeaturesService(stub.service());
+		listener.setReconcile(false);
+		listener.init();
+	}
+
+	@Test
+	public void updateReleasesOnlyDroppedClosureMembers() throws Exception {
+
+		final File past = descriptor("r1", "r1",
+				"<feature name=\"a\" version=\"1\" install=\"auto\">"
+						+ "<feature version=\"1\">lib-a</feature></feature>"
+						+ "<feature name=\"b\" version=\"1\" install=\"auto\">"
+						+ "<feature version=\"1\">lib-b</feature></feature>");
+		final File next = descriptor("r1-next", "r1",
+				"<feature name=\"b\" version=\"1\" install=\"auto\">"
+						+ "<feature version=\"1\">lib-b</feature></feature>"
+						+ "<feature name=\"c\" version=\"1\" install=\"auto\"/>");
+		final File other = descriptor("r1-other", "other",
+				"<feature name=\"z\" version=\"1\" install=\"auto\"/>");
+
+		listener.deploy(BundleEventType.INSTALLED, null, "r1", past.toURI()
+				.toURL(), System.nanoTime());
+		assertEquals(new HashSet<String>(Arrays.asList("lib-b/1", "lib-a/1",
+				"a/1", "b/1")), stub.installed());
+
+		listener.deploy(BundleEventType.UPDATED, null, "r1", next.toURI()
+				.toURL(), System.nanoTime());
+		assertEquals(new HashSet<String>(Arrays.asList("lib-b/1", "b/1",
+				"c/1")), stub.installed());
+		assertEquals(2, stub.getUninstallCount());
+		final PropBean propBean = listener.propBean();
+		assertEquals(1, propBean.countValue("r1", "lib-b/1"));
+		assertEquals(0, propBean.countValue("r1", "lib-a/1"));
+		assertEquals(1, propBean.countValue("r1", "c/1"));
+
+		/** Descriptor of another repository is rejected, nothing changes. */
+		listener.deploy(BundleEventType.UPDATED, null, "r1", other.toURI()
+				.toURL(), System.nanoTime());
+		assertTrue(listener.hasRepoRegistered("r1"));
+		assertEquals(new HashSet<String>(Arrays.asList("lib-b/1", "b/1",
+				"c/1")), stub.installed());
+		assertEquals(3, propBean.size());
+
+	}
+
+	private URL url(final String repoId) throws IOException {
+		return new File(folder, repoId + "."
+				+ FeatureDeploymentListener.EXTENSION).toURI().toURL();
+	}
+
+}
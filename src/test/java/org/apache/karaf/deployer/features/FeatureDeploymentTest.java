@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class FeatureDeploymentTest {
+
+	/**
+	 * Target which installs exactly the given features, no dependencies.
+	 */
+	static class Recorder implements FeatureDeployment.Target {
+
+		final PropBean counts = new PropBean(new Properties());
+
+		final Set<String> installedSet = Collections
+				.synchronizedSet(new LinkedHashSet<String>());
+
+		final Map<String, Feature> registeredMap = new LinkedHashMap<String, Feature>();
+
+		@Override
+		public PropBean counts() {
+			return counts;
+		}
+
+		@Override
+		public Feature[] installed() {
+			final Set<Feature> featureSet = new LinkedHashSet<Feature>();
+			for (final Feature feature : registeredMap.values()) {
+				if (installedSet.contains(feature.getId())) {
+					featureSet.add(feature);
+				}
+			}
+			return featureSet.toArray(new Feature[featureSet.size()]);
+		}
+
+		@Override
+		public void install(final Set<Feature> featureSet) throws Exception {
+			for (final Feature feature : featureSet) {
+				installedSet.add(feature.getId());
+			}
+		}
+
+		@Override
+		public boolean isInstalled(final Feature feature) {
+			return installedSet.contains(feature.getId());
+		}
+
+		@Override
+		public Map<String, Feature> registered() {
+			return registeredMap;
+		}
+
+		void register(final Feature... featureArray) {
+			for (final Feature feature : featureArray) {
+				registeredMap.put(feature.getId(), feature);
+			}
+		}
+
+		@Override
+		public void uninstall(final Feature feature) throws Exception {
+			installedSet.remove(feature.getId());
+		}
+
+	}
+
+	static Feature feature(final String name, final String... dependArray) {
+		final Dependency[] dependencyArray = new Dependency[dependArray.length];
+		for (int index = 0; index < dependArray.length; index++) {
+			dependencyArray[index] = StubFeaturesService.dependency(
+					dependArray[index], "1");
+		}
+		return StubFeaturesService.feature(name, "1", "auto",
+				Arrays.asList(dependencyArray));
+	}
+
+	@Test
+	public void featureAddInstallsClaimOfFailedBatch() throws Exception {
+
+		final Feature lib = feature("lib");
+		final Feature a = feature("a", "lib");
+		final Feature b = feature("b", "lib");
+
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Recorder recorder = new Recorder() {
+			@Override
+			public void install(final Set<Feature> featureSet)
+					throws Exception {
+				if (featureSet.contains(a)) {
+					/** First batch holds the lib claim, then fails. */
+					entered.countDown();
+					release.await(10, TimeUnit.SECONDS);
+					throw new IllegalStateException("Install failure.");
+				}
+				if (featureSet.contains(b)) {
+					release.countDown();
+				}
+				super.install(featureSet);
+			}
+		};
+		recorder.register(lib, a, b);
+		final FeatureDeployment deployment = new FeatureDeployment(recorder,
+				new DeploymentTracer(),
+				LoggerFactory.getLogger(FeatureDeploymentTest.class));
+
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<?> future = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					deployment.featureAdd("r1", Collections.singletonList(a));
+					return null;
+				}
+			});
+			entered.await(10, TimeUnit.SECONDS);
+
+			deployment.featureAdd("r2", Collections.singletonList(b));
+
+			try {
+				future.get(10, TimeUnit.SECONDS);
+				fail("Failure must be reported.");
+			} catch (final ExecutionException e) {
+				assertEquals(IllegalStateException.class, e.getCause()
+						.getClass());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(new LinkedHashSet<String>(Arrays.asList("b/1", "lib/1")),
+				recorder.installedSet);
+		assertEquals(1, recorder.counts.countValue("r2", "lib/1"));
+
+	}
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FeatureJarCacheTest {
+
+	/** Descriptor content. */
+	static final String CONTENT = "<features name=\"test\"/>";
+
+	private File cacheFolder;
+
+	private File folder;
+
+	/**
+	 * Content of wrapper descriptor entry; closes the stream.
+	 */
+	static String content(final InputStream input) throws IOException {
+		final JarInputStream jar = new JarInputStream(input);
+		try {
+			ZipEntry entry;
+			while ((entry = jar.getNextEntry()) != null) {
+				if (entry.getName().endsWith(".xml")) {
+					final ByteArrayOutputStream output = new ByteArrayOutputStream();
+					FeatureTransformer.copy(jar, output);
+					return new String(output.toByteArray(), PropBean.UTF_8);
+				}
+			}
+			return null;
+		} finally {
+			jar.close();
+		}
+	}
+
+	@After
+	public void cleanup() throws Exception {
+		StubBundleContext.delete(folder);
+	}
+
+	/**
+	 * Write descriptor, return its URL.
+	 */
+	private URL descriptor(final String name, final String content)
+			throws IOException {
+		final File file = new File(folder, name);
+		final OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(content.getBytes(PropBean.UTF_8));
+		} finally {
+			output.close();
+		}
+		return file.toURI().toURL();
+	}
+
+	private File jar(final FeatureJarCache cache, final URL url)
+			throws IOException {
+		return new File(cacheFolder, cache.key(url,
+				FeatureTransformer.name(url))
+				+ FeatureJarCache.SUFFIX);
+	}
+
+	@Test
+	public void keyCoversFormatNameContent() throws Exception {
+		final URL url = descriptor("a.xml", CONTENT);
+		final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		digest.update((FeatureJarCache.FORMAT + "\0a.xml\0" + CONTENT)
+				.getBytes(PropBean.UTF_8));
+		final FeatureJarCache cache = new FeatureJarCache(cacheFolder,
+				FeatureJarCache.LIMIT);
+		assertEquals(FeatureJarCache.hex(digest.digest()),
+				cache.key(url, "a.xml"));
+	}
+
+	@Test
+	public void openEvictsLeastRecentlyUsed() throws Exception {
+		final URL a = descriptor("a.xml", CONTENT);
+		final URL b = descriptor("b.xml", CONTENT);
+		final URL c = descriptor("c.xml", CONTENT);
+		final FeatureJarCache probe = new FeatureJarCache(cacheFolder,
+				FeatureJarCache.LIMIT);
+		content(probe.open(a));
+		final long size = probe.total();
+		jar(probe, a).delete();
+
+		final FeatureJarCache cache = new FeatureJarCache(cacheFolder,
+				2 * size + size / 2);
+		content(cache.open(a));
+		content(cache.open(b));
+		content(cache.open(a));
+		content(cache.open(c));
+
+		assertEquals(2, cache.size());
+		assertEquals(2 * size, cache.total());
+		assertTrue(jar(cache, a).exists());
+		assertFalse(jar(cache, b).exists());
+		assertTrue(jar(cache, c).exists());
+	}
+
+	@Test
+	public void openHitServesCachedJar() throws Exception {
+		final URL url = descriptor("a.xml", CONTENT);
+		final FeatureJarCache cache = new FeatureJarCache(cacheFolder,
+				FeatureJarCache.LIMIT);
+		assertEquals(CONTENT, content(cache.open(url)));
+		assertEquals(CONTENT, content(cache.open(url)));
+		assertEquals(1, cache.size());
+		assertEquals(1, cacheFolder.list().length);
+	}
+
+	@Test
+	public void openMissBuildsNewEntry() throws Exception {
+		final URL url = descriptor("a.xml", CONTENT);
+		final FeatureJarCache cache = new FeatureJarCache(cacheFolder,
+				FeatureJarCache.LIMIT);
+		content(cache.open(url));
+		final File past = jar(cache, url);
+		final String changed = "<features name=\"changed\"/>";
+		descriptor("a.xml", changed);
+		assertEquals(changed, content(cache.open(url)));
+		assertEquals(2, cache.size());
+		assertTrue(past.exists());
+		assertTrue(jar(cache, url).exists());
+	}
+
+	@Test
+	public void openRebuildsMissingJar() throws Exception {
+		final URL url = descriptor("a.xml", CONTENT);
+		final FeatureJarCache cache = new FeatureJarCache(cacheFolder,
+				FeatureJarCache.LIMIT);
+		content(cache.open(url));
+		final File file = jar(cache, url);
+		assertTrue(file.delete());
+		assertEquals(CONTENT, content(cache.open(url)));
+		assertTrue(file.exists());
+		assertEquals(1, cache.size());
+		assertEquals(file.length(), cache.total());
+	}
+
+	@Before
+	public void setup() throws Exception {
+		folder = StubBundleContext.folder();
+		cacheFolder = new File(folder, "cache");
+		cacheFolder.mkdirs();
+	}
+
+}
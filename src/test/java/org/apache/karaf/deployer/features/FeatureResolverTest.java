@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FeatureResolverTest {
+
+	/** Registered features by name/version. */
+	private Map<String, Feature> featureMap;
+
+	/** Catalog lookups, by name/version. */
+	private List<String> lookupList;
+
+	private FeatureResolver.Catalog catalog() {
+		return new FeatureResolver.Catalog() {
+			@Override
+			public Feature find(final Dependency dependency) {
+				final String key = FeatureIndex.key(dependency.getName(),
+						dependency.getVersion());
+				lookupList.add(key);
+				return featureMap.get(key);
+			}
+		};
+	}
+
+	/**
+	 * Register feature version 1 with given dependencies, version 1.
+	 */
+	private Feature feature(final String name, final String... dependencies) {
+		final List<Dependency> dependencyList = new ArrayList<Dependency>();
+		for (final String dependency : dependencies) {
+			dependencyList.add(StubFeaturesService.dependency(dependency, "1"));
+		}
+		final Feature feature = StubFeaturesService.feature(name, "1", null,
+				dependencyList);
+		featureMap.put(FeatureIndex.key(name, "1"), feature);
+		return feature;
+	}
+
+	private List<String> ids(final List<Feature> featureList) {
+		final List<String> idList = new ArrayList<String>();
+		for (final Feature feature : featureList) {
+			idList.add(feature.getId());
+		}
+		return idList;
+	}
+
+	@Test
+	public void resolveLooksUpSharedDependencyOnce() throws Exception {
+		feature("c");
+		final Feature a = feature("a", "c");
+		final Feature b = feature("b", "c");
+		final FeatureResolver resolver = new FeatureResolver(catalog());
+		assertEquals(Arrays.asList("c/1", "a/1", "b/1"),
+				ids(resolver.resolve(Arrays.asList(a, b))));
+		assertEquals(Collections.singletonList("c/1"), lookupList);
+	}
+
+	@Test
+	public void resolveOrdersDependenciesFirst() throws Exception {
+		feature("c");
+		feature("b", "c");
+		final Feature a = feature("a", "b", "c");
+		final Feature d = feature("d", "c");
+		final FeatureResolver resolver = new FeatureResolver(catalog());
+		assertEquals(Arrays.asList("c/1", "b/1", "a/1", "d/1"),
+				ids(resolver.resolve(Arrays.asList(a, d))));
+		assertEquals(4, resolver.size());
+		assertEquals(Arrays.asList("b/1", "c/1"),
+				ids(resolver.dependencies(a)));
+	}
+
+	@Test
+	public void resolveRejectsCycle() throws Exception {
+		feature("b", "c");
+		feature("c", "b");
+		final Feature a = feature("a", "b");
+		try {
+			new FeatureResolver(catalog()).resolve(Collections
+					.singletonList(a));
+			fail("Cycle must fail.");
+		} catch (final IllegalStateException e) {
+			assertTrue(e.getMessage(),
+					e.getMessage().contains("b/1 -> c/1 -> b/1"));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void resolveRejectsMissingDependency() throws Exception {
+		final Feature a = feature("a", "missing");
+		new FeatureResolver(catalog()).resolve(Collections.singletonList(a));
+	}
+
+	@Before
+	public void setup() {
+		featureMap = new HashMap<String, Feature>();
+		lookupList = new ArrayList<String>();
+	}
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarInputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+
+public class FeatureTransformerTest {
+
+	/**
+	 * Wrapper bundle read back: manifest, entries, descriptor content.
+	 */
+	static final class Wrapper {
+
+		final Attributes attributes;
+
+		String content;
+
+		final List<String> entryList = new ArrayList<String>();
+
+		Wrapper(final InputStream input) throws IOException {
+			final JarInputStream jar = new JarInputStream(input);
+			try {
+				attributes = jar.getManifest().getMainAttributes();
+				ZipEntry entry;
+				while ((entry = jar.getNextEntry()) != null) {
+					entryList.add(entry.getName());
+					if (!entry.isDirectory()) {
+						final ByteArrayOutputStream output = new ByteArrayOutputStream();
+						FeatureTransformer.copy(jar, output);
+						content = new String(output.toByteArray(),
+								PropBean.UTF_8);
+					}
+				}
+			} finally {
+				jar.close();
+			}
+		}
+
+	}
+
+	/** Descriptor content. */
+	static final String CONTENT = "<features name=\"app\"/>";
+
+	/** Descriptor entry folder in wrapper bundle. */
+	static final String ENTRY = "META-INF/"
+			+ FeatureDeploymentListener.FEATURE_PATH + "/";
+
+	private File folder;
+
+	@After
+	public void cleanup() throws Exception {
+		StubBundleContext.delete(folder);
+	}
+
+	/**
+	 * Write descriptor, return its URL.
+	 */
+	private URL descriptor(final String name) throws IOException {
+		final File file = new File(folder, name);
+		final OutputStream output = new FileOutputStream(file);
+		try {
+			output.write(CONTENT.getBytes(PropBean.UTF_8));
+		} finally {
+			output.close();
+		}
+		return file.toURI().toURL();
+	}
+
+	/**
+	 * Handler on the test folder, cache of given size.
+	 */
+	private FeatureURLHandler handler(final long cacheSize) {
+		final FeatureURLHandler handler = new FeatureURLHandler();
+		handler.setBundleContext(StubBundleContext.context(folder));
+		handler.setCacheSize(cacheSize);
+		handler.init();
+		return handler;
+	}
+
+	@Before
+	public void setup() throws Exception {
+		folder = StubBundleContext.folder();
+	}
+
+	@Test
+	public void transformRepositoryStampsHeader() throws Exception {
+		final String name = "app-1.0.0." + FeatureDeploymentListener.EXTENSION;
+		final Wrapper wrapper = new Wrapper(handler(FeatureJarCache.LIMIT)
+				.open(descriptor(name)));
+		assertEquals("app", wrapper.attributes
+				.getValue(Constants.BUNDLE_SYMBOLICNAME));
+		assertEquals("1.0.0",
+				wrapper.attributes.getValue(Constants.BUNDLE_VERSION));
+		assertEquals("/" + ENTRY + name,
+				wrapper.attributes.getValue(FeatureTransformer.HEADER));
+		assertEquals(Arrays.asList("META-INF/", ENTRY, ENTRY + name),
+				wrapper.entryList);
+		assertEquals(CONTENT, wrapper.content);
+	}
+
+	@Test
+	public void transformXmlKeepsDefaultDeployer() throws Exception {
+		final String name = "app-1.0.0.xml";
+		final Wrapper wrapper = new Wrapper(handler(0).open(
+				descriptor(name)));
+		assertEquals("app", wrapper.attributes
+				.getValue(Constants.BUNDLE_SYMBOLICNAME));
+		assertEquals("1.0.0",
+				wrapper.attributes.getValue(Constants.BUNDLE_VERSION));
+		assertNull(wrapper.attributes.getValue(FeatureTransformer.HEADER));
+		assertEquals(Arrays.asList("META-INF/", ENTRY, ENTRY + name),
+				wrapper.entryList);
+		assertEquals(CONTENT, wrapper.content);
+		assertEquals(0,
+				new File(folder, FeatureURLHandler.SPOOL).list().length);
+	}
+
+}
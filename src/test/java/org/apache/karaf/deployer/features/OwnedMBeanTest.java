@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OwnedMBeanTest {
+
+	public interface ProbeMXBean {
+		int getValue();
+	}
+
+	static class Probe implements ProbeMXBean {
+		@Override
+		public int getValue() {
+			return 1;
+		}
+	}
+
+	static final String NAME = "org.apache.karaf:type=deployer,name=test";
+
+	private final MBeanServer server = ManagementFactory
+			.getPlatformMBeanServer();
+
+	@After
+	public void cleanup() throws Exception {
+		final ObjectName name = new ObjectName(NAME);
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+	}
+
+	private OwnedMBean<ProbeMXBean> probe() {
+		return new OwnedMBean<ProbeMXBean>(new Probe(), ProbeMXBean.class,
+				NAME);
+	}
+
+	@Test
+	public void registerFailsWhenNameTaken() throws Exception {
+		final OwnedMBean<ProbeMXBean> past = probe();
+		final OwnedMBean<ProbeMXBean> next = probe();
+		past.register();
+		try {
+			next.register();
+			fail("Name is taken.");
+		} catch (final InstanceAlreadyExistsException e) {
+		}
+		assertTrue(past.isRegistered());
+		assertFalse(next.isRegistered());
+		past.unregister();
+		next.register();
+		assertTrue(next.isRegistered());
+	}
+
+	@Test
+	public void unregisterKeepsSuccessor() throws Exception {
+		final OwnedMBean<ProbeMXBean> past = probe();
+		final OwnedMBean<ProbeMXBean> next = probe();
+		past.register();
+		/** Removed by someone else, successor takes the name. */
+		server.unregisterMBean(new ObjectName(NAME));
+		assertFalse(past.isRegistered());
+		next.register();
+		past.unregister();
+		assertTrue(next.isRegistered());
+		assertTrue(server.isRegistered(new ObjectName(NAME)));
+		next.unregister();
+		assertFalse(server.isRegistered(new ObjectName(NAME)));
+	}
+
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PropBeanTest {
+
+	static void write(final File file, final String text) throws IOException {
+		final Writer writer = new OutputStreamWriter(
+				new FileOutputStream(file), PropBean.UTF_8);
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private File file;
+
+	private File folder;
+
+	@After
+	public void cleanup() {
+		StubBundleContext.delete(folder);
+	}
+
+	/**
+	 * Counts of a bean, sorted.
+	 */
+	private Map<Object, Object> counts(final PropBean bean) throws Exception {
+		return new TreeMap<Object, Object>(bean.counts());
+	}
+
+	/**
+	 * Fill bean with counts of three repositories over several flushes.
+	 */
+	private void fill(final PropBean bean) throws Exception {
+		for (int index = 0; index < 10; index++) {
+			bean.checkIncrement("r" + index % 3, "f" + index + "/1");
+			if (index % 2 == 1) {
+				bean.flush();
+			}
+		}
+		bean.checkIncrement("r0", "shared/1");
+		bean.checkIncrement("r1", "shared/1");
+		bean.checkDecrement("r2", "f2/1");
+		bean.flush();
+	}
+
+	@Test
+	public void checkCountsOncePerRepository() throws Exception {
+		final PropBean bean = new PropBean(file);
+		assertTrue(bean.checkIncrement("r0", "shared/1"));
+		assertFalse(bean.checkIncrement("r0", "shared/1"));
+		assertTrue(bean.checkIncrement("r1", "shared/1"));
+		assertEquals(2, bean.countValue(null, "shared/1"));
+		assertEquals(1, bean.countValue("r0", "shared/1"));
+		assertTrue(bean.checkDecrement("r0", "shared/1"));
+		assertFalse(bean.checkDecrement("r0", "shared/1"));
+		assertEquals(1, bean.countValue(null, "shared/1"));
+		assertEquals(0, bean.countValue("r0", "shared/1"));
+		assertTrue(bean.hasRepo("r1"));
+		assertFalse(bean.hasRepo("r0"));
+		assertEquals(1, bean.size());
+	}
+
+	@Test
+	public void loadLegacyState() throws Exception {
+		write(file, "[repo]/a/1=1\nr0/a/1=1\n");
+		final PropBean bean = new PropBean(file);
+		assertEquals(1, bean.countValue("r0", "a/1"));
+		assertEquals(1, bean.countValue(null, "a/1"));
+	}
+
+	@Test
+	public void loadReplaysJournal() throws Exception {
+		final PropBean bean = new PropBean(file);
+		fill(bean);
+		assertFalse(file.exists());
+		assertEquals(counts(bean), counts(new PropBean(file)));
+	}
+
+	@Test
+	public void loadReplaysJournalAfterCompaction() throws Exception {
+		final PropBean bean = new PropBean(file);
+		bean.setCompactRecords(3);
+		fill(bean);
+		assertTrue(file.exists());
+		assertEquals(counts(bean), counts(new PropBean(file)));
+	}
+
+	@Test
+	public void loadRecoversFromBackup() throws Exception {
+		final PropBean bean = new PropBean(file);
+		bean.setCompactRecords(3);
+		fill(bean);
+		assertTrue(bean.fileBackup().exists());
+		write(file, "[repo]/garbage/1=1\n@generation=99\n@checksum=1\n");
+		final PropBean recovered = new PropBean(file);
+		assertEquals(counts(bean), counts(recovered));
+		assertEquals(bean.generation(), recovered.generation());
+	}
+
+	@Test
+	public void loadSkipsUnflushedChanges() throws Exception {
+		final PropBean bean = new PropBean(file);
+		fill(bean);
+		final Map<Object, Object> flushed = counts(bean);
+		bean.checkIncrement("r0", "lost/1");
+		assertTrue(bean.isDirty());
+		assertEquals(flushed, counts(new PropBean(file)));
+	}
+
+	@Before
+	public void setup() throws IOException {
+		folder = StubBundleContext.folder();
+		file = new File(folder, FeatureDeploymentListener.PROP_FILE);
+	}
+
+}
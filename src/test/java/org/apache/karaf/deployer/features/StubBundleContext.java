@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Bundle context for tests and benchmarks, backed by a temporary folder.
+ * <p>
+ * Answers the bundle and system bundle data files and bundle listener
+ * registration used by the deployer; other methods fail.
+ */
+public final class StubBundleContext {
+
+	/**
+	 * Bundle context with data folder, shared with the system bundle.
+	 */
+	static BundleContext context(final File folder) {
+		final Bundle bundle = (Bundle) Proxy.newProxyInstance(
+				StubBundleContext.class.getClassLoader(),
+				new Class<?>[] { Bundle.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args) {
+						if ("getDataFile".equals(method.getName())) {
+							return new File(folder, (String) args[0]);
+						}
+						throw new UnsupportedOperationException(method
+								.getName());
+					}
+				});
+		return (BundleContext) Proxy.newProxyInstance(
+				StubBundleContext.class.getClassLoader(),
+				new Class<?>[] { BundleContext.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy,
+							final Method method, final Object[] args) {
+						final String methodName = method.getName();
+						if ("getBundle".equals(methodName)) {
+							return bundle;
+						}
+						if ("getDataFile".equals(methodName)) {
+							return new File(folder, (String) args[0]);
+						}
+						if ("addBundleListener".equals(methodName)
+								|| "removeBundleListener".equals(methodName)) {
+							return null;
+						}
+						throw new UnsupportedOperationException(methodName);
+					}
+				});
+	}
+
+	/**
+	 * Remove folder with content.
+	 */
+	static void delete(final File file) {
+		final File[] fileArray = file.listFiles();
+		if (fileArray != null) {
+			for (final File child : fileArray) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Fresh temporary folder.
+	 */
+	static File folder() throws IOException {
+		final File folder = File.createTempFile("deployer", "");
+		if (!folder.delete() || !folder.mkdirs()) {
+			throw new IOException("Can not create: " + folder);
+		}
+		return folder;
+	}
+
+	private StubBundleContext() {
+	}
+
+}
@@ -0,0 +1,479 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.karaf.features.BundleInfo;
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+import org.apache.karaf.features.FeaturesService;
+import org.apache.karaf.features.Repository;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * In-memory features service for load tests and benchmarks.
+ * <p>
+ * Registers repositories by parsing real feature descriptors: features with
+ * install mode, description, resolver, start level, dependencies and
+ * bundles. Install resolves dependencies transitively, like the feature
+ * service does; install and uninstall only track feature ids, with optional
+ * latency per feature to emulate bundle provisioning. Synthetic catalogs of
+ * any size can be registered without descriptors. Methods not used by the
+ * deployer fail.
+ */
+public class StubFeaturesService implements InvocationHandler {
+
+	/**
+	 * Proxy answering getters from a value map.
+	 */
+	static class ValueHandle implements InvocationHandler {
+
+		final Map<String, Object> valueMap;
+
+		ValueHandle(final Map<String, Object> valueMap) {
+			this.valueMap = valueMap;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method,
+				final Object[] args) throws Throwable {
+			final String methodName = method.getName();
+			if ("equals".equals(methodName)) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(methodName)) {
+				return System.identityHashCode(proxy);
+			}
+			if (!valueMap.containsKey(methodName)) {
+				throw new UnsupportedOperationException(methodName);
+			}
+			return valueMap.get(methodName);
+		}
+
+	}
+
+	/** Descriptor default feature version. */
+	static final String DEFAULT_VERSION = "0.0.0";
+
+	static String attribute(final Element element, final String name) {
+		return element.hasAttribute(name) ? element.getAttribute(name) : null;
+	}
+
+	/**
+	 * Bundle value.
+	 */
+	static BundleInfo bundle(final String location, final int startLevel,
+			final boolean isStart, final boolean isDependency) {
+		final Map<String, Object> valueMap = new HashMap<String, Object>();
+		valueMap.put("getLocation", location);
+		valueMap.put("getStartLevel", startLevel);
+		valueMap.put("isStart", isStart);
+		valueMap.put("isDependency", isDependency);
+		valueMap.put("toString", location);
+		return value(BundleInfo.class, valueMap);
+	}
+
+	/**
+	 * Dependency value.
+	 */
+	static Dependency dependency(final String name, final String version) {
+		final Map<String, Object> valueMap = new HashMap<String, Object>();
+		valueMap.put("getName", name);
+		valueMap.put("getVersion", version);
+		valueMap.put("toString", name + "/" + version);
+		return value(Dependency.class, valueMap);
+	}
+
+	/**
+	 * Feature value, without bundles.
+	 */
+	static Feature feature(final String name, final String version,
+			final String install, final List<Dependency> dependencyList) {
+		return feature(name, version, install, null, null, 0,
+				dependencyList, Collections.<BundleInfo> emptyList());
+	}
+
+	/**
+	 * Feature value.
+	 */
+	static Feature feature(final String name, final String version,
+			final String install, final String description,
+			final String resolver, final int startLevel,
+			final List<Dependency> dependencyList,
+			final List<BundleInfo> bundleList) {
+		final String featureVersion = version == null ? DEFAULT_VERSION
+				: version;
+		final Map<String, Object> valueMap = new HashMap<String, Object>();
+		valueMap.put("getId", name + "/" + featureVersion);
+		valueMap.put("getName", name);
+		valueMap.put("getVersion", featureVersion);
+		valueMap.put("hasVersion", version != null);
+		valueMap.put("getInstall", install);
+		valueMap.put("getDescription", description);
+		valueMap.put("getDetails", null);
+		valueMap.put("getResolver", resolver);
+		valueMap.put("getStartLevel", startLevel);
+		valueMap.put("getRegion", null);
+		valueMap.put("getDependencies", dependencyList);
+		valueMap.put("getBundles", bundleList);
+		valueMap.put("toString", name + "/" + featureVersion);
+		return value(Feature.class, valueMap);
+	}
+
+	static boolean isElement(final Node node, final String name) {
+		return node.getNodeType() == Node.ELEMENT_NODE
+				&& name.equals(node.getLocalName());
+	}
+
+	/**
+	 * Repository value.
+	 */
+	static Repository repository(final String name, final URI uri,
+			final URI[] repoArray, final Feature[] featureArray) {
+		final Map<String, Object> valueMap = new HashMap<String, Object>();
+		valueMap.put("getName", name);
+		valueMap.put("getURI", uri);
+		valueMap.put("getFeatures", featureArray);
+		valueMap.put("getRepositories", repoArray);
+		valueMap.put("toString", name);
+		return value(Repository.class, valueMap);
+	}
+
+	static <T> T value(final Class<T> type, final Map<String, Object> valueMap) {
+		return type.cast(Proxy.newProxyInstance(
+				StubFeaturesService.class.getClassLoader(),
+				new Class<?>[] { type }, new ValueHandle(valueMap)));
+	}
+
+	private final DocumentBuilderFactory dbf = DocumentBuilderFactory
+			.newInstance();
+
+	private final AtomicLong installCount = new AtomicLong();
+
+	private final Map<String, Feature> installedMap = new LinkedHashMap<String, Feature>();
+
+	/** Emulated provisioning time per installed feature, millis. */
+	private volatile long installLatency;
+
+	private final Map<URI, Repository> repoMap = new LinkedHashMap<URI, Repository>();
+
+	private final AtomicLong uninstallCount = new AtomicLong();
+
+	/** Emulated provisioning time per uninstalled feature, millis. */
+	private volatile long uninstallLatency;
+
+	StubFeaturesService() {
+		dbf.setNamespaceAware(true);
+	}
+
+	/**
+	 * Register synthetic repository with given number of manual features.
+	 */
+	synchronized Repository catalog(final String name, final int count) {
+		final Feature[] featureArray = new Feature[count];
+		for (int index = 0; index < count; index++) {
+			featureArray[index] = feature(name + "-feature-" + index, "1.0.0",
+					"manual", Collections.<Dependency> emptyList());
+		}
+		final URI uri = URI.create("stub:" + name);
+		final Repository repo = repository(name, uri, new URI[0],
+				featureArray);
+		repoMap.put(uri, repo);
+		return repo;
+	}
+
+	/**
+	 * Registered feature by name and version; any version when version is
+	 * missing or default.
+	 */
+	Feature find(final String name, final String version) throws Exception {
+		final boolean isAny = version == null
+				|| DEFAULT_VERSION.equals(version);
+		for (final Repository repo : repoMap.values()) {
+			for (final Feature feature : repo.getFeatures()) {
+				if (feature.getName().equals(name)
+						&& (isAny || feature.getVersion().equals(version))) {
+					return feature;
+				}
+			}
+		}
+		return null;
+	}
+
+	long getInstallCount() {
+		return installCount.get();
+	}
+
+	long getInstallLatency() {
+		return installLatency;
+	}
+
+	long getUninstallCount() {
+		return uninstallCount.get();
+	}
+
+	long getUninstallLatency() {
+		return uninstallLatency;
+	}
+
+	/**
+	 * Install features with dependencies; latency is spent outside of the
+	 * service lock, like bundle provisioning.
+	 */
+	void install(final Set<?> featureSet) throws Exception {
+		final List<Feature> featureList = new ArrayList<Feature>();
+		synchronized (this) {
+			final Set<String> visitSet = new LinkedHashSet<String>();
+			for (final Object feature : featureSet) {
+				resolve((Feature) feature, visitSet, featureList);
+			}
+		}
+		sleep(installLatency * featureList.size());
+		synchronized (this) {
+			for (final Feature feature : featureList) {
+				installedMap.put(feature.getId(), feature);
+				installCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Installed feature ids, in install order.
+	 */
+	synchronized Set<String> installed() {
+		return new LinkedHashSet<String>(installedMap.keySet());
+	}
+
+	@Override
+	public Object invoke(final Object proxy, final Method method,
+			final Object[] args) throws Throwable {
+		final String methodName = method.getName();
+		if ("installFeatures".equals(methodName)) {
+			install((Set<?>) args[0]);
+			return null;
+		}
+		if ("installFeature".equals(methodName) && args[0] instanceof Feature) {
+			install(Collections.singleton(args[0]));
+			return null;
+		}
+		if ("uninstallFeature".equals(methodName) && args.length >= 2
+				&& args[1] instanceof String) {
+			uninstall((String) args[0], (String) args[1]);
+			return null;
+		}
+		synchronized (this) {
+			return invokeLocked(proxy, method, args);
+		}
+	}
+
+	/**
+	 * Catalog queries and changes, under service lock.
+	 */
+	Object invokeLocked(final Object proxy, final Method method,
+			final Object[] args) throws Throwable {
+		final String methodName = method.getName();
+		if ("addRepository".equals(methodName)) {
+			final URI uri = (URI) args[0];
+			if (!repoMap.containsKey(uri)) {
+				repoMap.put(uri, parse(uri));
+			}
+			return null;
+		}
+		if ("removeRepository".equals(methodName)) {
+			repoMap.remove(args[0]);
+			return null;
+		}
+		if ("listRepositories".equals(methodName)) {
+			return repoMap.values().toArray(new Repository[repoMap.size()]);
+		}
+		if ("getRepository".equals(methodName)) {
+			for (final Repository repo : repoMap.values()) {
+				if (repo.getName().equals(args[0])) {
+					return repo;
+				}
+			}
+			return null;
+		}
+		if ("listFeatures".equals(methodName)) {
+			final List<Feature> featureList = new ArrayList<Feature>();
+			for (final Repository repo : repoMap.values()) {
+				Collections.addAll(featureList, repo.getFeatures());
+			}
+			return featureList.toArray(new Feature[featureList.size()]);
+		}
+		if ("getFeature".equals(methodName)) {
+			return find((String) args[0], args.length > 1 ? (String) args[1]
+					: null);
+		}
+		if ("listInstalledFeatures".equals(methodName)) {
+			return installedMap.values().toArray(
+					new Feature[installedMap.size()]);
+		}
+		if ("isInstalled".equals(methodName)) {
+			return installedMap.containsKey(((Feature) args[0]).getId());
+		}
+		if ("toString".equals(methodName)) {
+			return "StubFeaturesService";
+		}
+		if ("hashCode".equals(methodName)) {
+			return System.identityHashCode(proxy);
+		}
+		if ("equals".equals(methodName)) {
+			return proxy == args[0];
+		}
+		throw new UnsupportedOperationException(methodName);
+	}
+
+	/**
+	 * Repository from descriptor.
+	 */
+	Repository parse(final URI uri) throws Exception {
+		final DocumentBuilder db = dbf.newDocumentBuilder();
+		final Document doc = db.parse(uri.toString());
+		final Element root = doc.getDocumentElement();
+		final List<URI> repoList = new ArrayList<URI>();
+		final List<Feature> featureList = new ArrayList<Feature>();
+		for (Node node = root.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (isElement(node, "repository")) {
+				repoList.add(URI.create(node.getTextContent().trim()));
+			}
+			if (isElement(node, "feature")) {
+				featureList.add(parseFeature((Element) node));
+			}
+		}
+		return repository(root.getAttribute("name"), uri,
+				repoList.toArray(new URI[repoList.size()]),
+				featureList.toArray(new Feature[featureList.size()]));
+	}
+
+	/**
+	 * Feature from descriptor element.
+	 */
+	Feature parseFeature(final Element element) {
+		final List<Dependency> dependencyList = new ArrayList<Dependency>();
+		final List<BundleInfo> bundleList = new ArrayList<BundleInfo>();
+		for (Node node = element.getFirstChild(); node != null; node = node
+				.getNextSibling()) {
+			if (isElement(node, "feature")) {
+				dependencyList.add(dependency(node.getTextContent().trim(),
+						attribute((Element) node, "version")));
+			}
+			if (isElement(node, "bundle")) {
+				final Element bundle = (Element) node;
+				final String startLevel = attribute(bundle, "start-level");
+				bundleList.add(bundle(bundle.getTextContent().trim(),
+						startLevel == null ? 0 : Integer.parseInt(startLevel),
+						!"false".equals(attribute(bundle, "start")),
+						"true".equals(attribute(bundle, "dependency"))));
+			}
+		}
+		final String startLevel = attribute(element, "start-level");
+		return feature(element.getAttribute("name"),
+				attribute(element, "version"), attribute(element, "install"),
+				attribute(element, "description"),
+				attribute(element, "resolver"), startLevel == null ? 0
+						: Integer.parseInt(startLevel), dependencyList,
+				bundleList);
+	}
+
+	/**
+	 * Collect feature and missing dependencies, dependencies first.
+	 */
+	void resolve(final Feature feature, final Set<String> visitSet,
+			final List<Feature> featureList) throws Exception {
+		if (installedMap.containsKey(feature.getId())
+				|| !visitSet.add(feature.getId())) {
+			return;
+		}
+		for (final Dependency dependency : feature.getDependencies()) {
+			final Feature resolved = find(dependency.getName(),
+					dependency.getVersion());
+			if (resolved == null) {
+				throw new Exception("No feature named '" + dependency.getName()
+						+ "' with version '" + dependency.getVersion()
+						+ "' available");
+			}
+			resolve(resolved, visitSet, featureList);
+		}
+		featureList.add(feature);
+	}
+
+	/**
+	 * Features service view.
+	 */
+	FeaturesService service() {
+		return (FeaturesService) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { FeaturesService.class },
+				this);
+	}
+
+	void setInstallLatency(final long installLatency) {
+		this.installLatency = installLatency;
+	}
+
+	void setUninstallLatency(final long uninstallLatency) {
+		this.uninstallLatency = uninstallLatency;
+	}
+
+	/**
+	 * Emulate provisioning time.
+	 */
+	void sleep(final long millis) throws InterruptedException {
+		if (millis > 0) {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		}
+	}
+
+	/**
+	 * Uninstall feature; latency is spent outside of the service lock.
+	 */
+	void uninstall(final String name, final String version) throws Exception {
+		final String featureId = name + "/" + version;
+		synchronized (this) {
+			if (!installedMap.containsKey(featureId)) {
+				throw new Exception("Feature named '" + name
+						+ "' with version '" + version + "' is not installed");
+			}
+		}
+		sleep(uninstallLatency);
+		synchronized (this) {
+			installedMap.remove(featureId);
+			uninstallCount.incrementAndGet();
+		}
+	}
+
+}
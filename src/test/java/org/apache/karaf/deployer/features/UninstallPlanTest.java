@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.karaf.deployer.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.karaf.features.Dependency;
+import org.apache.karaf.features.Feature;
+import org.junit.Test;
+
+public class UninstallPlanTest {
+
+	/**
+	 * Uninstall action which records feature ids.
+	 */
+	static class Recorder implements UninstallPlan.Action {
+
+		final List<String> idList = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void uninstall(final Feature feature) throws Exception {
+			idList.add(feature.getId());
+		}
+
+	}
+
+	static Feature feature(final String name) {
+		return StubFeaturesService.feature(name, "1", null,
+				Collections.<Dependency> emptyList());
+	}
+
+	@Test
+	public void executeDependentsFirst() throws Exception {
+		final Feature a = feature("a");
+		final Feature b = feature("b");
+		final Feature c = feature("c");
+		final UninstallPlan plan = new UninstallPlan();
+		plan.add(c);
+		plan.add(b);
+		plan.add(a);
+		plan.link(a, b);
+		plan.link(b, c);
+		plan.link(a, c);
+		final Recorder recorder = new Recorder();
+		plan.execute(UninstallPlan.INLINE, recorder);
+		assertEquals(Arrays.asList("a/1", "b/1", "c/1"), recorder.idList);
+	}
+
+	@Test
+	public void executeCycleSequentially() throws Exception {
+		final Feature a = feature("a");
+		final Feature b = feature("b");
+		final Feature c = feature("c");
+		final UninstallPlan plan = new UninstallPlan();
+		plan.add(a);
+		plan.add(b);
+		plan.add(c);
+		plan.link(a, b);
+		plan.link(b, a);
+		plan.link(b, c);
+		final Recorder recorder = new Recorder();
+		plan.execute(UninstallPlan.INLINE, recorder);
+		assertEquals(Arrays.asList("a/1", "b/1", "c/1"), recorder.idList);
+	}
+
+	@Test
+	public void executeFailureRetriedSequentially() throws Exception {
+		final Feature a = feature("a");
+		final Feature b = feature("b");
+		final Feature c = feature("c");
+		final UninstallPlan plan = new UninstallPlan();
+		plan.add(a);
+		plan.add(b);
+		plan.add(c);
+		plan.link(a, b);
+		final Recorder recorder = new Recorder() {
+			boolean isFailed;
+
+			@Override
+			public void uninstall(final Feature feature) throws Exception {
+				if (feature == a && !isFailed) {
+					isFailed = true;
+					throw new IllegalStateException("Uninstall failure.");
+				}
+				super.uninstall(feature);
+			}
+		};
+		plan.execute(UninstallPlan.INLINE, recorder);
+		assertEquals(Arrays.asList("c/1", "a/1", "b/1"), recorder.idList);
+	}
+
+	@Test
+	public void executeFailureReleasesDependencies() throws Exception {
+		final Feature a = feature("a");
+		final Feature b = feature("b");
+		final Feature c = feature("c");
+		final UninstallPlan plan = new UninstallPlan();
+		plan.add(a);
+		plan.add(b);
+		plan.add(c);
+		plan.link(a, b);
+		final Recorder recorder = new Recorder() {
+			@Override
+			public void uninstall(final Feature feature) throws Exception {
+				if (feature == a) {
+					throw new IllegalStateException("Uninstall failure.");
+				}
+				super.uninstall(feature);
+			}
+		};
+		try {
+			plan.execute(UninstallPlan.INLINE, recorder);
+			fail("Failure must be reported.");
+		} catch (final IllegalStateException e) {
+			assertEquals(Arrays.asList("c/1", "b/1"), recorder.idList);
+		}
+	}
+
+	@Test
+	public void executeIndependentInParallel() throws Exception {
+		final int count = 4;
+		final CountDownLatch latch = new CountDownLatch(count);
+		final UninstallPlan plan = new UninstallPlan();
+		for (int index = 0; index < count; index++) {
+			plan.add(feature("f" + index));
+		}
+		final Recorder recorder = new Recorder() {
+			@Override
+			public void uninstall(final Feature feature) throws Exception {
+				latch.countDown();
+				/** Completes only when all run at the same time. */
+				if (!latch.await(10, TimeUnit.SECONDS)) {
+					throw new IllegalStateException("Not parallel.");
+				}
+				super.uninstall(feature);
+			}
+		};
+		final ExecutorService executor = UninstallPlan.executor(count);
+		try {
+			plan.execute(executor, recorder);
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(count, recorder.idList.size());
+	}
+
+	@Test
+	public void linkNeedsPlannedFeatures() throws Exception {
+		final Feature a = feature("a");
+		final Feature b = feature("b");
+		final UninstallPlan plan = new UninstallPlan();
+		plan.add(a);
+		plan.add(a);
+		plan.link(a, b);
+		plan.link(a, a);
+		assertEquals(1, plan.size());
+		assertTrue(plan.contains(a));
+		final Recorder recorder = new Recorder();
+		plan.execute(UninstallPlan.INLINE, recorder);
+		assertEquals(Collections.singletonList("a/1"), recorder.idList);
+	}
+
+}